@@ -1,6 +1,6 @@
 package net.zschech.gwt.chat.server;
 
-import java.util.Map;
+import java.io.Serializable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -12,7 +12,10 @@ import net.zschech.gwt.chat.client.ChatService;
 import net.zschech.gwt.chat.client.StatusUpdate;
 import net.zschech.gwt.chat.client.StatusUpdate.Status;
 import net.zschech.gwt.comet.server.CometServlet;
+import net.zschech.gwt.comet.server.ConflatingQueue;
+import net.zschech.gwt.comet.server.ConflationKeyProvider;
 import net.zschech.gwt.comet.server.CometSession;
+import net.zschech.gwt.comet.server.CometTopic;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
@@ -23,6 +26,21 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet;
  */
 public class ChatServiceImpl extends RemoteServiceServlet implements ChatService {
 	
+	/**
+	 * The name of the topic all logged in users' CometSessions are subscribed to.
+	 */
+	private static final String CHAT_TOPIC = "chat";
+	
+	/**
+	 * Conflates queued status updates by user name so a lagging browser only receives each user's latest status.
+	 */
+	private static final ConflationKeyProvider STATUS_CONFLATION = new ConflationKeyProvider() {
+		@Override
+		public Object getConflationKey(Serializable message) {
+			return message instanceof StatusUpdate ? ((StatusUpdate) message).getUsername() : null;
+		}
+	};
+	
 	/**
 	 * A mapping of user names to CometSessions used for routing messages.
 	 */
@@ -48,7 +66,7 @@ public class ChatServiceImpl extends RemoteServiceServlet implements ChatService
 		// Get or create the HTTP session for the browser
 		HttpSession httpSession = getThreadLocalRequest().getSession();
 		// Get or create the Comet session for the browser
-		CometSession cometSession = CometServlet.getCometSession(httpSession);
+		CometSession cometSession = CometServlet.getCometSession(httpSession, new ConflatingQueue(STATUS_CONFLATION));
 		// Remember the user name for the
 		httpSession.setAttribute("username", username);
 		
@@ -58,6 +76,9 @@ public class ChatServiceImpl extends RemoteServiceServlet implements ChatService
 			httpSession.invalidate();
 			throw new ChatException("User: " + username + " already logged in");
 		}
+		
+		// subscribe to the chat messages, the subscription is removed when the CometSession is invalidated
+		getChatTopic().subscribe(cometSession);
 	}
 	
 	/**
@@ -110,9 +131,7 @@ public class ChatServiceImpl extends RemoteServiceServlet implements ChatService
 		chatMessage.setUsername(username);
 		chatMessage.setMessage(message);
 		
-		for (Map.Entry<String, CometSession> entry : users.entrySet()) {
-			entry.getValue().enqueue(chatMessage);
-		}
+		getChatTopic().publish(chatMessage);
 	}
 
 	@Override
@@ -134,8 +153,10 @@ public class ChatServiceImpl extends RemoteServiceServlet implements ChatService
 		statusUpdate.setUsername(username);
 		statusUpdate.setStatus(status);
 		
-		for (Map.Entry<String, CometSession> entry : users.entrySet()) {
-			entry.getValue().enqueue(statusUpdate);
-		}
+		getChatTopic().publish(statusUpdate);
+	}
+	
+	private CometTopic getChatTopic() {
+		return CometServlet.getCometTopic(getServletContext(), CHAT_TOPIC);
 	}
 }
\ No newline at end of file
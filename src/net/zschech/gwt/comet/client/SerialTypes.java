@@ -16,7 +16,17 @@
 package net.zschech.gwt.comet.client;
 
 import java.io.Serializable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 
+/**
+ * Declares the types a {@link CometSerializer} can deserialize. The annotation is retained at runtime so the server can
+ * prime compressed Comet responses with the type names and build writers serializing the types, see the CometServlet
+ * compressionDictionary and serializers init-params.
+ * 
+ * @author Richard Zschech
+ */
+@Retention(RetentionPolicy.RUNTIME)
 public @interface SerialTypes {
 	Class<? extends Serializable>[] value();
 	SerialMode mode() default SerialMode.RPC;
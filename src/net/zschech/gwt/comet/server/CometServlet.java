@@ -24,23 +24,35 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import net.zschech.gwt.comet.client.SerialTypes;
 import net.zschech.gwt.comet.client.impl.CometTransport;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
 import net.zschech.gwt.comet.server.impl.AsyncServlet;
+import net.zschech.gwt.comet.server.impl.BroadcastMessage;
 import net.zschech.gwt.comet.server.impl.CometServletResponseImpl;
 import net.zschech.gwt.comet.server.impl.CometSessionImpl;
+import net.zschech.gwt.comet.server.impl.CompressionController;
+import net.zschech.gwt.comet.server.impl.DeflateCompressionProvider;
+import net.zschech.gwt.comet.server.impl.EncodingCache;
 import net.zschech.gwt.comet.server.impl.EventSourceCometServletResponse;
 import net.zschech.gwt.comet.server.impl.HTTPRequestCometServletResponse;
 import net.zschech.gwt.comet.server.impl.IEHTMLFileCometServletResponse;
+import net.zschech.gwt.comet.server.impl.JdkCompressionProvider;
 import net.zschech.gwt.comet.server.impl.OperaEventSourceCometServletResponse;
+import net.zschech.gwt.comet.server.impl.SerialTypeWriter;
 
 import com.google.gwt.rpc.server.ClientOracle;
 import com.google.gwt.rpc.server.HostedModeClientOracle;
@@ -58,12 +70,49 @@ public class CometServlet extends HttpServlet {
 	
 	public static final String AUTO_CREATE_COMET_SESSION = "net.zschech.gwt.comet.server.auto.create.comet.session.on.comet.request";
 	
+	/**
+	 * The context parameter configuring the capacity of the default Comet session message queue. If not set the queue is
+	 * unbounded.
+	 */
+	public static final String QUEUE_CAPACITY = "net.zschech.gwt.comet.server.queue.capacity";
+	
+	/**
+	 * The context parameter configuring the default {@link QueueOverflowPolicy} of Comet sessions.
+	 */
+	public static final String QUEUE_OVERFLOW_POLICY = "net.zschech.gwt.comet.server.queue.overflow.policy";
+	
+	/**
+	 * The context parameter configuring the class name of a {@link ConflationKeyProvider}. If set the default Comet
+	 * session message queue is a {@link ConflatingQueue} using the provider.
+	 */
+	public static final String QUEUE_CONFLATION_KEY_PROVIDER = "net.zschech.gwt.comet.server.queue.conflation.key.provider";
+	
+	public static final String COMET_TOPICS_KEY = "net.zschech.gwt.comet.server.CometTopics";
+	
 	private static final long serialVersionUID = 820972291784919880L;
 	
+	private static final int MAX_POOLED_BUFFERS = 4096;
+	
 	private int heartbeat = 15 * 1000; // 15 seconds by default
 	
+	private int drainTime = 50; // 50 milliseconds by default
+	
+	private transient BufferPool bufferPool;
+	
+	private transient EncodingCache encodingCache;
+	
+	private transient CompressionProvider compressionProvider = new DeflateCompressionProvider();
+	
+	private String compressionDictionary;
+	
+	private boolean compressBroadcastsOnce;
+	
 	private transient AsyncServlet async;
 	
+	private transient SerializationPolicy serializationPolicy;
+	
+	private transient volatile Map<Class<?>, SerialTypeWriter> serialTypeWriters;
+	
 	private boolean autoCreateCometSession;
 	
 	public void setHeartbeat(int heartbeat) {
@@ -74,6 +123,213 @@ public class CometServlet extends HttpServlet {
 		return heartbeat;
 	}
 	
+	/**
+	 * Sets the time budget in milliseconds for writing queued messages to a Comet response in one pass. When the budget
+	 * is used up the written messages are flushed and the remaining messages are written in the next pass.
+	 * 
+	 * @param drainTime
+	 */
+	public void setDrainTime(int drainTime) {
+		this.drainTime = drainTime;
+	}
+	
+	public int getDrainTime() {
+		return drainTime;
+	}
+	
+	/**
+	 * Enables or disables releasing the encoding and compression buffers of Comet responses to a shared pool after each
+	 * flush. This reduces the memory held by idle Comet connections at the cost of acquiring the buffers again on the
+	 * next write.
+	 * 
+	 * @param releaseIdleBuffers
+	 */
+	public void setReleaseIdleBuffers(boolean releaseIdleBuffers) {
+		if (!releaseIdleBuffers) {
+			bufferPool = null;
+		}
+		else if (bufferPool == null) {
+			bufferPool = new BufferPool(MAX_POOLED_BUFFERS);
+		}
+	}
+	
+	/**
+	 * @return the pool idle Comet responses release their buffers to or null if idle buffers are not released
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Enables or disables caching the encoded form of messages by identity so a message instance enqueued to many Comet
+	 * sessions is serialized once for each transport message format and serialization policy or client oracle, see
+	 * {@link EncodingCache}. Messages must not be modified and enqueued again within the maximum age.
+	 * 
+	 * A message is only cached from the second time it is written with the same encoding, so the first Comet session
+	 * receiving it still serializes it straight into its response and messages enqueued to a single Comet session do
+	 * not evict the cached messages.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of encoded messages cached or 0 to disable the cache
+	 * @param maxAge
+	 *            the maximum time in milliseconds an encoded message is cached for
+	 */
+	public void setEncodingCache(int maxSize, long maxAge) {
+		encodingCache = maxSize > 0 ? new EncodingCache(maxSize, maxAge) : null;
+	}
+	
+	/**
+	 * @return the cache of encoded messages or null if messages are encoded for each Comet session
+	 */
+	public EncodingCache getEncodingCache() {
+		return encodingCache;
+	}
+	
+	/**
+	 * Sets the compression of Comet responses:
+	 * <ul>
+	 * <li>"deflate" the bundled pure Java deflater, the default</li>
+	 * <li>"adaptive" the bundled deflater with the compression level of each connection adapted to the CPU load and to
+	 * how well its data compresses, see {@link CompressionController}</li>
+	 * <li>"jdk-deflate" the JDK's native deflater, requires Java 7</li>
+	 * <li>"gzip" the JDK's native deflater with the gzip Content-Encoding, requires Java 7</li>
+	 * <li>"none" no compression</li>
+	 * <li>otherwise the class name of a {@link CompressionProvider}</li>
+	 * </ul>
+	 * The JDK compressions fall back to the bundled deflater if the JVM does not support them.
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(String compression) {
+		if ("none".equals(compression)) {
+			compressionProvider = null;
+		}
+		else if ("deflate".equals(compression)) {
+			compressionProvider = new DeflateCompressionProvider();
+		}
+		else if ("adaptive".equals(compression)) {
+			compressionProvider = new DeflateCompressionProvider(new CompressionController());
+		}
+		else if ("jdk-deflate".equals(compression) || "gzip".equals(compression)) {
+			if (JdkCompressionProvider.isAvailable()) {
+				compressionProvider = new JdkCompressionProvider("gzip".equals(compression), java.util.zip.Deflater.DEFAULT_COMPRESSION);
+			}
+			else {
+				log("Compression " + compression + " requires Java 7, using the bundled deflater");
+				compressionProvider = new DeflateCompressionProvider();
+			}
+		}
+		else {
+			try {
+				compressionProvider = (CompressionProvider) Class.forName(compression).newInstance();
+			}
+			catch (Exception e) {
+				throw new IllegalArgumentException("Error creating compression provider: " + compression, e);
+			}
+		}
+	}
+	
+	public void setCompressionProvider(CompressionProvider compressionProvider) {
+		this.compressionProvider = compressionProvider;
+	}
+	
+	/**
+	 * Sets the window size of each compressed Comet connection when the bundled deflater is used, see
+	 * {@link DeflateCompressionProvider#setWindowBits(int, int)}.
+	 * 
+	 * @param initialWindowBits
+	 * @param maxWindowBits
+	 */
+	public void setCompressionWindowBits(int initialWindowBits, int maxWindowBits) {
+		if (compressionProvider instanceof DeflateCompressionProvider) {
+			((DeflateCompressionProvider) compressionProvider).setWindowBits(initialWindowBits, maxWindowBits);
+		}
+		else {
+			log("Compression window bits are only supported by the bundled deflater");
+		}
+	}
+	
+	/**
+	 * Sets the hash table size of each compressed Comet connection when the bundled deflater is used, see
+	 * {@link DeflateCompressionProvider#setHashBits(int)}.
+	 * 
+	 * @param hashBits
+	 */
+	public void setCompressionHashBits(int hashBits) {
+		if (compressionProvider instanceof DeflateCompressionProvider) {
+			((DeflateCompressionProvider) compressionProvider).setHashBits(hashBits);
+		}
+		else {
+			log("Compression hash bits are only supported by the bundled deflater");
+		}
+	}
+	
+	/**
+	 * @return the compression provider or null if Comet responses are not compressed
+	 */
+	public CompressionProvider getCompressionProvider() {
+		return compressionProvider;
+	}
+	
+	/**
+	 * Sets the text compressed Comet responses are primed with. The text is sent in an ignorable frame when the
+	 * response is initiated so the messages that follow can refer back to it, e.g. to their type names, rather than
+	 * being compressed against an empty deflate window. The initial compression window must be larger than the text
+	 * for messages to refer back to all of it, see {@link #setCompressionWindowBits(int, int)}. When configured with the
+	 * compressionDictionary init-param the initial window is enlarged to fit the text unless the
+	 * compressionInitialWindowBits init-param is set.
+	 * 
+	 * @param compressionDictionary
+	 *            the text or null to not prime responses
+	 */
+	public void setCompressionDictionary(String compressionDictionary) {
+		this.compressionDictionary = compressionDictionary;
+	}
+	
+	/**
+	 * Sets the compression dictionary to the names of the types declared by the {@link SerialTypes} annotations of the
+	 * given {@link net.zschech.gwt.comet.client.CometSerializer} classes.
+	 * 
+	 * @param serializers
+	 */
+	public void setCompressionDictionary(Class<?>... serializers) {
+		StringBuilder dictionary = new StringBuilder();
+		for (Class<?> serializer : serializers) {
+			SerialTypes serialTypes = serializer.getAnnotation(SerialTypes.class);
+			if (serialTypes == null) {
+				throw new IllegalArgumentException("No SerialTypes annotation on CometSerializer type: " + serializer.getName());
+			}
+			for (Class<? extends Serializable> type : serialTypes.value()) {
+				dictionary.append(type.getName()).append(' ');
+			}
+		}
+		setCompressionDictionary(dictionary.length() == 0 ? null : dictionary.toString());
+	}
+	
+	/**
+	 * @return the text compressed Comet responses are primed with or null
+	 */
+	public String getCompressionDictionary() {
+		return compressionDictionary;
+	}
+	
+	/**
+	 * Enables or disables compressing each broadcast message's frame once for all the Comet responses with the same
+	 * frame format. The compressed frame is spliced into each response's compressed stream, so a broadcast costs a copy
+	 * per recipient rather than a compression. This requires the bundled deflater. The frames do not refer to the data
+	 * sent before them, such as the compression dictionary, so they compress slightly worse. The data sent after them
+	 * may still refer back to them and to the data before them.
+	 * 
+	 * @param compressBroadcastsOnce
+	 */
+	public void setCompressBroadcastsOnce(boolean compressBroadcastsOnce) {
+		this.compressBroadcastsOnce = compressBroadcastsOnce;
+	}
+	
+	public boolean isCompressBroadcastsOnce() {
+		return compressBroadcastsOnce;
+	}
+	
 	@Override
 	public void init() throws ServletException {
 		ServletConfig servletConfig = getServletConfig();
@@ -81,8 +337,122 @@ public class CometServlet extends HttpServlet {
 		if (heartbeat != null) {
 			this.heartbeat = Integer.parseInt(heartbeat);
 		}
+		String drainTime = servletConfig.getInitParameter("drainTime");
+		if (drainTime != null) {
+			this.drainTime = Integer.parseInt(drainTime);
+		}
+		String encodingCacheSize = servletConfig.getInitParameter("encodingCacheSize");
+		if (encodingCacheSize != null) {
+			String encodingCacheAge = servletConfig.getInitParameter("encodingCacheAge");
+			setEncodingCache(Integer.parseInt(encodingCacheSize), encodingCacheAge == null ? 1000 : Long.parseLong(encodingCacheAge));
+		}
+		if ("true".equals(servletConfig.getInitParameter("releaseIdleBuffers"))) {
+			setReleaseIdleBuffers(true);
+		}
+		String compression = servletConfig.getInitParameter("compression");
+		if (compression != null) {
+			setCompression(compression);
+		}
+		String compressionWindowBits = servletConfig.getInitParameter("compressionWindowBits");
+		String compressionInitialWindowBits = servletConfig.getInitParameter("compressionInitialWindowBits");
+		if (compressionWindowBits != null || compressionInitialWindowBits != null) {
+			int maxWindowBits = compressionWindowBits == null ? 15 : Integer.parseInt(compressionWindowBits);
+			int initialWindowBits = compressionInitialWindowBits == null ? Math.min(10, maxWindowBits) : Integer.parseInt(compressionInitialWindowBits);
+			setCompressionWindowBits(initialWindowBits, maxWindowBits);
+		}
+		String compressionHashBits = servletConfig.getInitParameter("compressionHashBits");
+		if (compressionHashBits != null) {
+			setCompressionHashBits(Integer.parseInt(compressionHashBits));
+		}
+		String compressionDictionary = servletConfig.getInitParameter("compressionDictionary");
+		if (compressionDictionary != null) {
+			setCompressionDictionary(loadSerializers(compressionDictionary, "compression dictionary"));
+			if (this.compressionDictionary != null && compressionProvider instanceof DeflateCompressionProvider) {
+				DeflateCompressionProvider deflate = (DeflateCompressionProvider) compressionProvider;
+				int windowBits = deflate.getInitialWindowBits();
+				if (compressionInitialWindowBits == null) {
+					// start with a window holding the dictionary, growing the window keeps it
+					while (windowBits < deflate.getMaxWindowBits() && (1 << windowBits) < this.compressionDictionary.length() + 262) {
+						windowBits++;
+					}
+					setCompressionWindowBits(windowBits, deflate.getMaxWindowBits());
+				}
+				if ((1 << windowBits) < this.compressionDictionary.length() + 262) {
+					log("The compression dictionary does not fit in the initial compression window of " + (1 << windowBits) + " bytes");
+				}
+			}
+		}
+		if ("true".equals(servletConfig.getInitParameter("compressBroadcastsOnce"))) {
+			setCompressBroadcastsOnce(true);
+		}
 		this.autoCreateCometSession = "true".equals(getServletConfig().getInitParameter(AUTO_CREATE_COMET_SESSION));
 		async = AsyncServlet.initialize(getServletContext());
+		serializationPolicy = createSerializationPolicy();
+		String serializers = servletConfig.getInitParameter("serializers");
+		if (serializers != null) {
+			prepareSerialTypes(loadSerializers(serializers, "serializers"));
+		}
+	}
+	
+	private static Class<?>[] loadSerializers(String param, String name) throws ServletException {
+		String[] classNames = param.trim().split("[,\\s]+");
+		Class<?>[] serializers = new Class<?>[classNames.length];
+		for (int i = 0; i < classNames.length; i++) {
+			try {
+				serializers[i] = Class.forName(classNames[i]);
+			}
+			catch (ClassNotFoundException e) {
+				throw new ServletException("Error loading " + name + " CometSerializer: " + classNames[i], e);
+			}
+		}
+		return serializers;
+	}
+	
+	/**
+	 * Builds writers for the types declared by the {@link SerialTypes} annotations of the CometSerializers, and for the
+	 * types of their fields, so messages of those types are serialized without GWT's per message reflection, see
+	 * {@link SerialTypeWriter}. This is called with the classes named by the "serializers" init-param once the
+	 * serialization policy has been created. The GWT RPC wire format is unchanged and deRPC serialization is not
+	 * affected.
+	 * 
+	 * @param serializers
+	 *            the CometSerializer classes
+	 */
+	public synchronized void prepareSerialTypes(Class<?>... serializers) {
+		if (serializationPolicy == null) {
+			throw new IllegalStateException("prepareSerialTypes can not be called before the servlet is initialized.");
+		}
+		Map<Class<?>, SerialTypeWriter> writers = new HashMap<Class<?>, SerialTypeWriter>();
+		if (serialTypeWriters != null) {
+			writers.putAll(serialTypeWriters);
+		}
+		writers.putAll(SerialTypeWriter.create(serializationPolicy, serializers));
+		serialTypeWriters = writers;
+		log("Prepared writers for " + writers.size() + " serializable types");
+	}
+	
+	/**
+	 * @return the writers of the types prepared by {@link #prepareSerialTypes(Class...)} or null
+	 */
+	public Map<Class<?>, SerialTypeWriter> getSerialTypeWriters() {
+		return serialTypeWriters;
+	}
+	
+	@Override
+	public void destroy() {
+		if (bufferPool != null) {
+			log("Comet response buffers: " + bufferPool);
+		}
+		if (encodingCache != null) {
+			log("Comet message encodings: " + encodingCache);
+		}
+		if (compressionProvider instanceof DeflateCompressionProvider) {
+			CompressionController controller = ((DeflateCompressionProvider) compressionProvider).getController();
+			if (controller != null) {
+				log("Comet response compression: " + controller);
+			}
+		}
+		super.destroy();
 	}
 	
 	@Override
@@ -103,7 +473,7 @@ public class CometServlet extends HttpServlet {
 			}
 			
 			ClientOracle clientOracle = getClientOracle(request);
-			SerializationPolicy serializationPolicy = clientOracle == null ? createSerializationPolicy() : null;
+			SerializationPolicy serializationPolicy = clientOracle == null ? this.serializationPolicy : null;
 			CometServletResponseImpl cometServletResponse = createCometServletResponse(request, response, serializationPolicy, clientOracle, requestHeartbeat);
 			doCometImpl(cometServletResponse);
 		}
@@ -114,7 +484,7 @@ public class CometServlet extends HttpServlet {
 	}
 	
 	private CometServletResponseImpl createCometServletResponse(HttpServletRequest request, HttpServletResponse response, SerializationPolicy serializationPolicy, ClientOracle clientOracle, int requestHeartbeat) {
-		
+		AsyncServlet async = this.async.forRequest(request);
 		String accept = request.getHeader("Accept");
 		String userAgent = request.getHeader("User-Agent");
 		if ("text/event-stream".equals(accept)) {
@@ -191,6 +561,12 @@ public class CometServlet extends HttpServlet {
 		return requestedHeartbeat < heartbeat ? heartbeat : requestedHeartbeat;
 	}
 	
+	/**
+	 * Override this method to provide a custom serialization policy. This method is called once when the servlet is
+	 * initialized and the policy is shared by all the Comet responses of this servlet.
+	 * 
+	 * @return the serialization policy
+	 */
 	protected SerializationPolicy createSerializationPolicy() {
 		return new SerializationPolicy() {
 			@Override
@@ -276,7 +652,7 @@ public class CometServlet extends HttpServlet {
 	}
 	
 	public static CometSession getCometSession(HttpSession httpSession) {
-		return getCometSession(httpSession, new ConcurrentLinkedQueue<Serializable>());
+		return getCometSession(httpSession, true);
 	}
 	
 	public static CometSession getCometSession(HttpSession httpSession, Queue<Serializable> queue) {
@@ -284,7 +660,7 @@ public class CometServlet extends HttpServlet {
 	}
 	
 	public static CometSession getCometSession(HttpSession httpSession, boolean create) {
-		return getCometSession(httpSession, create, create ? new ConcurrentLinkedQueue<Serializable>() : null);
+		return getCometSession(httpSession, create, create ? createQueue(httpSession.getServletContext()) : null);
 	}
 	
 	public static CometSession getCometSession(HttpSession httpSession, boolean create, Queue<Serializable> queue) {
@@ -292,11 +668,118 @@ public class CometServlet extends HttpServlet {
 			CometSession session = (CometSession) httpSession.getAttribute(CometSession.HTTP_SESSION_KEY);
 			if (session == null) {
 				if (create) {
-					session = new CometSessionImpl(httpSession, queue, AsyncServlet.initialize(httpSession.getServletContext()));
+					ServletContext context = httpSession.getServletContext();
+					session = new CometSessionImpl(httpSession, queue, AsyncServlet.initialize(context));
+					String overflowPolicy = context.getInitParameter(QUEUE_OVERFLOW_POLICY);
+					if (overflowPolicy != null) {
+						session.setQueueOverflowPolicy(QueueOverflowPolicy.valueOf(overflowPolicy));
+					}
 					httpSession.setAttribute(CometSession.HTTP_SESSION_KEY, session);
 				}
 			}
 			return session;
 		}
 	}
+	
+	private static Queue<Serializable> createQueue(ServletContext context) {
+		String capacity = context.getInitParameter(QUEUE_CAPACITY);
+		String keyProvider = context.getInitParameter(QUEUE_CONFLATION_KEY_PROVIDER);
+		if (keyProvider != null) {
+			ConflationKeyProvider provider;
+			try {
+				provider = (ConflationKeyProvider) Class.forName(keyProvider).newInstance();
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Error creating conflation key provider: " + keyProvider, e);
+			}
+			return capacity == null ? new ConflatingQueue(provider) : new ConflatingQueue(provider, Integer.parseInt(capacity));
+		}
+		if (capacity != null) {
+			return new LinkedBlockingQueue<Serializable>(Integer.parseInt(capacity));
+		}
+		return new ConcurrentLinkedQueue<Serializable>();
+	}
+	
+	/**
+	 * Returns the named topic, creating it if necessary. A topic is removed again when its last Comet session
+	 * unsubscribes.
+	 * 
+	 * @param context
+	 * @param name
+	 * @return the topic
+	 */
+	public static CometTopic getCometTopic(ServletContext context, String name) {
+		return getCometTopic(context, name, true);
+	}
+	
+	/**
+	 * Returns the named topic or, if there is no topic with the name and create is true, returns a new topic.
+	 * 
+	 * @param context
+	 * @param name
+	 * @param create
+	 * @return the topic or null if create is false and there is no topic with the name
+	 */
+	public static CometTopic getCometTopic(ServletContext context, String name, boolean create) {
+		ConcurrentMap<String, CometTopic> topics = getCometTopics(context);
+		CometTopic topic = topics.get(name);
+		if (topic == null && create) {
+			topic = new CometTopic(name, topics);
+			CometTopic existing = topics.putIfAbsent(name, topic);
+			if (existing != null) {
+				topic = existing;
+			}
+		}
+		return topic;
+	}
+	
+	/**
+	 * Removes the named topic unsubscribing all its Comet sessions.
+	 * 
+	 * @param context
+	 * @param name
+	 */
+	public static void removeCometTopic(ServletContext context, String name) {
+		CometTopic topic = getCometTopics(context).remove(name);
+		if (topic != null) {
+			topic.clear();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ConcurrentMap<String, CometTopic> getCometTopics(ServletContext context) {
+		ConcurrentMap<String, CometTopic> topics = (ConcurrentMap<String, CometTopic>) context.getAttribute(COMET_TOPICS_KEY);
+		if (topics == null) {
+			synchronized (context) {
+				topics = (ConcurrentMap<String, CometTopic>) context.getAttribute(COMET_TOPICS_KEY);
+				if (topics == null) {
+					topics = new ConcurrentHashMap<String, CometTopic>();
+					context.setAttribute(COMET_TOPICS_KEY, topics);
+				}
+			}
+		}
+		return topics;
+	}
+	
+	/**
+	 * Enqueues a message to each of the given Comet sessions. The message is serialized once for each distinct
+	 * transport message format and serialization policy or client oracle used by the sessions' Comet responses rather
+	 * than once for each session. Invalidated sessions are skipped.
+	 * 
+	 * The message is enqueued wrapped in a {@link BroadcastMessage}.
+	 * 
+	 * @param message
+	 * @param sessions
+	 */
+	public static void broadcast(Serializable message, Iterable<? extends CometSession> sessions) {
+		BroadcastMessage broadcast = new BroadcastMessage(message);
+		for (CometSession session : sessions) {
+			try {
+				session.enqueue(broadcast);
+			}
+			catch (IllegalStateException e) {
+				// CometSession already invalidated
+			}
+		}
+	}
 }
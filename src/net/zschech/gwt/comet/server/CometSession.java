@@ -48,6 +48,8 @@ public interface CometSession {
 	 *  session.enqueued();
 	 * </code>
 	 * 
+	 * except if the queue is bounded and full the {@link QueueOverflowPolicy} of this session is applied.
+	 * 
 	 * @param message
 	 * @exception IllegalStateException
 	 *                if this method is called on an invalidated session
@@ -70,6 +72,25 @@ public interface CometSession {
 	 */
 	public Queue<? extends Serializable> getQueue() throws IllegalStateException;
 	
+	/**
+	 * Sets the policy applied when a message is enqueued and the bounded message queue is full.
+	 * 
+	 * @param policy
+	 */
+	public void setQueueOverflowPolicy(QueueOverflowPolicy policy);
+	
+	/**
+	 * @return the policy applied when a message is enqueued and the bounded message queue is full
+	 */
+	public QueueOverflowPolicy getQueueOverflowPolicy();
+	
+	/**
+	 * Sets the listener notified of messages dropped because the bounded message queue is full.
+	 * 
+	 * @param listener
+	 */
+	public void setQueueOverflowListener(QueueOverflowListener listener);
+	
 	/**
 	 * Invalidates the comet session
 	 */
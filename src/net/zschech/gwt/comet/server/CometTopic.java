@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletContext;
+
+import net.zschech.gwt.comet.server.impl.BroadcastMessage;
+import net.zschech.gwt.comet.server.impl.CometSessionImpl;
+
+/**
+ * A named topic Comet sessions can subscribe to. Messages published to the topic are enqueued to all the subscribed
+ * Comet sessions. Topics are looked up using {@link CometServlet#getCometTopic(ServletContext, String)}.
+ * 
+ * Comet sessions are automatically unsubscribed from all their topics when they are invalidated. A topic is removed
+ * from the servlet context once its last Comet session unsubscribes. A topic held on to after it was removed forwards
+ * to the topic with the same name created afterwards, if any.
+ * 
+ * The subscribers are held in a copy on write array so publishing a message does not lock or contend with other
+ * publishers.
+ * 
+ * @author Richard Zschech
+ */
+public class CometTopic {
+	
+	private static final CometSessionImpl[] EMPTY = new CometSessionImpl[0];
+	
+	private final String name;
+	private final ConcurrentMap<String, CometTopic> topics;
+	private volatile CometSessionImpl[] subscribers = EMPTY;
+	
+	// written while holding this, read without locking by publishers
+	private volatile boolean removed;
+	
+	CometTopic(String name, ConcurrentMap<String, CometTopic> topics) {
+		this.name = name;
+		this.topics = topics;
+	}
+	
+	/**
+	 * @return the name of this topic
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Subscribes a Comet session to this topic.
+	 * 
+	 * @param session
+	 * @return true if the session was subscribed, false if it was already subscribed or has been invalidated
+	 */
+	public boolean subscribe(CometSession session) {
+		CometSessionImpl sessionImpl = (CometSessionImpl) session;
+		CometTopic topic = this;
+		while (true) {
+			synchronized (topic) {
+				if (!topic.removed) {
+					// the session's topics and the subscribers are updated together so a concurrent unsubscribe sees both
+					if (!sessionImpl.addTopic(topic)) {
+						return false;
+					}
+					CometSessionImpl[] current = topic.subscribers;
+					CometSessionImpl[] updated = new CometSessionImpl[current.length + 1];
+					System.arraycopy(current, 0, updated, 0, current.length);
+					updated[current.length] = sessionImpl;
+					topic.subscribers = updated;
+					break;
+				}
+			}
+			topic = topic.replacement(true);
+		}
+		
+		if (!sessionImpl.isValid()) {
+			// the session was invalidated while subscribing
+			topic.unsubscribe(sessionImpl);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Unsubscribes a Comet session from this topic.
+	 * 
+	 * @param session
+	 * @return true if the session was subscribed
+	 */
+	public boolean unsubscribe(CometSession session) {
+		CometSessionImpl sessionImpl = (CometSessionImpl) session;
+		CometTopic topic = this;
+		while (true) {
+			synchronized (topic) {
+				sessionImpl.removeTopic(topic);
+				if (!topic.removed) {
+					return topic.remove(sessionImpl);
+				}
+			}
+			topic = topic.replacement(false);
+			if (topic == null) {
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * @param session
+	 * @return if the Comet session is subscribed to this topic
+	 */
+	public boolean isSubscribed(CometSession session) {
+		for (CometSessionImpl subscriber : current().subscribers) {
+			if (subscriber == session) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the number of Comet sessions subscribed to this topic
+	 */
+	public int getSubscriberCount() {
+		return current().subscribers.length;
+	}
+	
+	/**
+	 * Enqueues a message to all the Comet sessions subscribed to this topic. The message is serialized once for each
+	 * distinct transport message format and serialization policy or client oracle, see
+	 * {@link CometServlet#broadcast(Serializable, Iterable)}.
+	 * 
+	 * @param message
+	 */
+	public void publish(Serializable message) {
+		CometSessionImpl[] current = current().subscribers;
+		if (current.length == 0) {
+			return;
+		}
+		
+		BroadcastMessage broadcast = new BroadcastMessage(message);
+		for (CometSessionImpl subscriber : current) {
+			try {
+				subscriber.enqueue(broadcast);
+			}
+			catch (IllegalStateException e) {
+				// CometSession invalidated and is being unsubscribed
+			}
+		}
+	}
+	
+	/**
+	 * Unsubscribe all the Comet sessions when this topic is removed.
+	 */
+	void clear() {
+		CometSessionImpl[] current;
+		synchronized (this) {
+			removed = true;
+			current = subscribers;
+			subscribers = EMPTY;
+		}
+		for (CometSessionImpl subscriber : current) {
+			subscriber.removeTopic(this);
+		}
+	}
+	
+	/**
+	 * @return this topic or, if it has been removed, the topic with the same name created afterwards or this topic if
+	 *         there is none
+	 */
+	private CometTopic current() {
+		CometTopic topic = this;
+		while (topic.removed) {
+			CometTopic replacement = topic.replacement(false);
+			if (replacement == null) {
+				return topic;
+			}
+			topic = replacement;
+		}
+		return topic;
+	}
+	
+	private CometTopic replacement(boolean create) {
+		CometTopic topic = topics.get(name);
+		if (topic == null && create) {
+			topic = new CometTopic(name, topics);
+			CometTopic existing = topics.putIfAbsent(name, topic);
+			if (existing != null) {
+				topic = existing;
+			}
+		}
+		return topic == this ? null : topic;
+	}
+	
+	/**
+	 * Removes a session from the subscribers and this topic from the servlet context when it has no subscribers left.
+	 */
+	private synchronized boolean remove(CometSessionImpl session) {
+		CometSessionImpl[] current = subscribers;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == session) {
+				CometSessionImpl[] updated;
+				if (current.length == 1) {
+					updated = EMPTY;
+				}
+				else {
+					updated = new CometSessionImpl[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				}
+				subscribers = updated;
+				if (updated.length == 0 && !removed) {
+					removed = true;
+					topics.remove(name, this);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+}
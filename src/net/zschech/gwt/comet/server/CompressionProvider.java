@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+
+/**
+ * Compresses Comet responses. The compression provider of a {@link CometServlet} is configured with the "compression"
+ * init-param, see {@link CometServlet#setCompression(String)}.
+ * 
+ * Comet responses are flushed after each batch of messages so the compressed stream's flush must make all the data
+ * written so far decodable by the client, i.e. perform a deflate sync flush.
+ * 
+ * @author Richard Zschech
+ */
+public interface CompressionProvider {
+	
+	/**
+	 * @return the Content-Encoding of the compressed response, the response is only compressed if the client accepts
+	 *         this encoding
+	 */
+	public String getContentEncoding();
+	
+	/**
+	 * Wraps a Comet response output stream in a compressing stream.
+	 * 
+	 * @param outputStream
+	 * @param bufferPool
+	 *            the pool to release idle compression buffers to or null if idle buffers are not released
+	 * @return the compressing stream
+	 * @throws IOException
+	 */
+	public OutputStream getOutputStream(OutputStream outputStream, BufferPool bufferPool) throws IOException;
+	
+	/**
+	 * Releases the resources held by a compressing stream of a Comet response which is terminated without closing the
+	 * stream, for example when the client disconnects or writing fails. Nothing more is written to the Comet response.
+	 * 
+	 * @param compressedOutputStream
+	 *            a stream returned by {@link #getOutputStream(OutputStream, BufferPool)}
+	 */
+	public void release(OutputStream compressedOutputStream);
+}
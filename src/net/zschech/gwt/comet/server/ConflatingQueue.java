@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.zschech.gwt.comet.server.impl.BroadcastMessage;
+
+/**
+ * A message queue for "latest value wins" messages. When a message is offered and a message with the same conflation
+ * key is already queued the queued message is replaced by the new message keeping its position in the queue. A Comet
+ * client that falls behind therefore only receives the latest version of each conflated message.
+ * 
+ * The conflation keys are provided by a {@link ConflationKeyProvider}. Broadcast messages are conflated using the key
+ * of the message being broadcast.
+ * 
+ * The queue may be bounded in which case {@link #offer(Serializable)} returns false when the queue is full and the new
+ * message does not replace a queued message.
+ * 
+ * <pre>
+ * CometServlet.getCometSession(httpSession, new ConflatingQueue(keyProvider));
+ * </pre>
+ * 
+ * @author Richard Zschech
+ */
+public class ConflatingQueue extends AbstractQueue<Serializable> {
+	
+	private static class Node {
+		private Serializable message;
+		private final Object key;
+		private Node next;
+		
+		private Node(Serializable message, Object key) {
+			this.message = message;
+			this.key = key;
+		}
+	}
+	
+	private final ConflationKeyProvider keyProvider;
+	private final int capacity;
+	private final Map<Object, Node> index = new HashMap<Object, Node>();
+	
+	private Node head;
+	private Node tail;
+	private int size;
+	
+	public ConflatingQueue(ConflationKeyProvider keyProvider) {
+		this(keyProvider, Integer.MAX_VALUE);
+	}
+	
+	public ConflatingQueue(ConflationKeyProvider keyProvider, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		this.keyProvider = keyProvider;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * @return the capacity of this queue
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	@Override
+	public boolean offer(Serializable message) {
+		if (message == null) {
+			throw new NullPointerException();
+		}
+		Object key = getConflationKey(message);
+		synchronized (this) {
+			if (key != null) {
+				Node node = index.get(key);
+				if (node != null) {
+					node.message = message;
+					return true;
+				}
+			}
+			if (size == capacity) {
+				return false;
+			}
+			
+			Node node = new Node(message, key);
+			if (tail == null) {
+				head = node;
+			}
+			else {
+				tail.next = node;
+			}
+			tail = node;
+			size++;
+			if (key != null) {
+				index.put(key, node);
+			}
+			return true;
+		}
+	}
+	
+	@Override
+	public synchronized Serializable poll() {
+		Node node = head;
+		if (node == null) {
+			return null;
+		}
+		unlink(node, null);
+		return node.message;
+	}
+	
+	@Override
+	public synchronized Serializable peek() {
+		return head == null ? null : head.message;
+	}
+	
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+	
+	@Override
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@Override
+	public synchronized boolean contains(Object o) {
+		for (Node node = head; node != null; node = node.next) {
+			if (node.message.equals(o)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public synchronized boolean remove(Object o) {
+		Node previous = null;
+		for (Node node = head; node != null; node = node.next) {
+			if (node.message.equals(o)) {
+				unlink(node, previous);
+				return true;
+			}
+			previous = node;
+		}
+		return false;
+	}
+	
+	@Override
+	public synchronized void clear() {
+		head = null;
+		tail = null;
+		size = 0;
+		index.clear();
+	}
+	
+	/**
+	 * Returns an iterator over a snapshot of the queued messages. The iterator does not support removal.
+	 */
+	@Override
+	public synchronized Iterator<Serializable> iterator() {
+		List<Serializable> snapshot = new ArrayList<Serializable>(size);
+		for (Node node = head; node != null; node = node.next) {
+			snapshot.add(node.message);
+		}
+		final Iterator<Serializable> iterator = snapshot.iterator();
+		return new Iterator<Serializable>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+			
+			@Override
+			public Serializable next() {
+				return iterator.next();
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	private void unlink(Node node, Node previous) {
+		assert Thread.holdsLock(this);
+		if (previous == null) {
+			head = node.next;
+		}
+		else {
+			previous.next = node.next;
+		}
+		if (tail == node) {
+			tail = previous;
+		}
+		node.next = null;
+		size--;
+		if (node.key != null) {
+			index.remove(node.key);
+		}
+	}
+	
+	private Object getConflationKey(Serializable message) {
+		if (message instanceof BroadcastMessage) {
+			message = ((BroadcastMessage) message).getMessage();
+		}
+		return keyProvider.getConflationKey(message);
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+import java.io.Serializable;
+
+/**
+ * Provides the conflation keys of messages enqueued to a {@link ConflatingQueue}.
+ * 
+ * @author Richard Zschech
+ */
+public interface ConflationKeyProvider {
+	
+	/**
+	 * Returns the conflation key of a message. A queued message is replaced by a newer message with an equal conflation
+	 * key.
+	 * 
+	 * @param message
+	 * @return the conflation key or null if the message should never be conflated
+	 */
+	public Object getConflationKey(Serializable message);
+}
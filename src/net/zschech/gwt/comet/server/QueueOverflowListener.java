@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+import java.io.Serializable;
+
+/**
+ * Notified of messages dropped from a Comet session because its bounded message queue is full.
+ * 
+ * @see QueueOverflowPolicy
+ * @author Richard Zschech
+ */
+public interface QueueOverflowListener {
+	
+	/**
+	 * Called when a message is dropped. This is called on the thread enqueuing the message.
+	 * 
+	 * @param session
+	 * @param message
+	 */
+	public void messageDropped(CometSession session, Serializable message);
+}
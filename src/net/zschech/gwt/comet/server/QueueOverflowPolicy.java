@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server;
+
+/**
+ * The policy applied by {@link CometSession#enqueue(java.io.Serializable)} when a bounded message queue is full. Each
+ * message dropped is reported to the session's {@link QueueOverflowListener}.
+ * 
+ * @author Richard Zschech
+ */
+public enum QueueOverflowPolicy {
+	
+	/**
+	 * Drop the oldest queued messages to make room for the new message.
+	 */
+	DROP_OLDEST,
+	
+	/**
+	 * Drop the new message.
+	 */
+	DROP_NEWEST,
+	
+	/**
+	 * Drop the new message if an equal message is already queued otherwise drop the oldest queued messages to make room
+	 * for the new message. Broadcast and topic messages are compared by the messages they publish. Use a
+	 * {@link ConflatingQueue} to replace queued messages by newer messages with the same conflation key.
+	 */
+	COALESCE,
+	
+	/**
+	 * Drop the new message and invalidate the Comet session terminating its Comet response.
+	 */
+	INVALIDATE
+}
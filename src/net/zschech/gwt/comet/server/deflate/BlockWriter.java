@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.deflate;
+
+import java.io.IOException;
+
+/**
+ * A compressed stream which deflate blocks compressed independently of it, such as those produced by
+ * {@link Deflater#compressBlocks}, can be spliced into. This lets data sent to many streams be compressed once.
+ * 
+ * @author Richard Zschech
+ */
+public interface BlockWriter {
+	
+	/**
+	 * Writes independently compressed deflate blocks to the stream, see {@link Deflater#writeBlocks}.
+	 * 
+	 * @param buf
+	 *            the compressed blocks
+	 * @param off
+	 *            the blocks offset
+	 * @param len
+	 *            the blocks length
+	 * @param data
+	 *            the blocks' uncompressed data
+	 * @param dataOff
+	 *            the uncompressed data offset
+	 * @param dataLen
+	 *            the uncompressed data length
+	 * @throws IOException
+	 */
+	void writeBlocks(byte[] buf, int off, int len, byte[] data, int dataOff, int dataLen) throws IOException;
+}
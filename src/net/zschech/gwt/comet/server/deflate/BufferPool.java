@@ -0,0 +1,148 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.deflate;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte and int arrays shared by idle connections. Connections release their encoding and compression buffers
+ * to the pool after flushing and acquire them again on their next write, so an idle connection only holds the state
+ * which must survive between writes, such as the deflate window.
+ * 
+ * Arrays are pooled by length and are not cleared when they are acquired.
+ * 
+ * @author Richard Zschech
+ */
+public class BufferPool {
+	
+	private final int maxPooled;
+	private final ConcurrentMap<Integer, Queue<byte[]>> bytes = new ConcurrentHashMap<Integer, Queue<byte[]>>();
+	private final ConcurrentMap<Integer, Queue<int[]>> ints = new ConcurrentHashMap<Integer, Queue<int[]>>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+	
+	/**
+	 * @param maxPooled
+	 *            the maximum number of arrays kept in the pool, arrays released when the pool is full are garbage
+	 *            collected
+	 */
+	public BufferPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+	
+	public byte[] acquireBytes(int length) {
+		acquired.incrementAndGet();
+		byte[] result = poll(bytes, length);
+		if (result == null) {
+			allocated.incrementAndGet();
+			return new byte[length];
+		}
+		pooledBytes.addAndGet(-length);
+		return result;
+	}
+	
+	public void releaseBytes(byte[] array) {
+		if (offer(bytes, array.length, array)) {
+			pooledBytes.addAndGet(array.length);
+		}
+	}
+	
+	public int[] acquireInts(int length) {
+		acquired.incrementAndGet();
+		int[] result = poll(ints, length);
+		if (result == null) {
+			allocated.incrementAndGet();
+			return new int[length];
+		}
+		pooledBytes.addAndGet(-4L * length);
+		return result;
+	}
+	
+	public void releaseInts(int[] array) {
+		if (offer(ints, array.length, array)) {
+			pooledBytes.addAndGet(4L * array.length);
+		}
+	}
+	
+	/**
+	 * @return the number of arrays in the pool
+	 */
+	public int getPooled() {
+		return pooled.get();
+	}
+	
+	/**
+	 * @return the memory held by the arrays in the pool in bytes
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+	
+	/**
+	 * @return the number of arrays acquired from the pool
+	 */
+	public long getAcquired() {
+		return acquired.get();
+	}
+	
+	/**
+	 * @return the number of arrays allocated because the pool did not have an array of the requested length
+	 */
+	public long getAllocated() {
+		return allocated.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "BufferPool[pooled=" + getPooled() + ", pooledBytes=" + getPooledBytes() + ", acquired=" + getAcquired() + ", allocated=" + getAllocated() + "]";
+	}
+	
+	private <T> T poll(ConcurrentMap<Integer, Queue<T>> arrays, int length) {
+		Queue<T> queue = arrays.get(length);
+		if (queue == null) {
+			return null;
+		}
+		T result = queue.poll();
+		if (result != null) {
+			pooled.decrementAndGet();
+		}
+		return result;
+	}
+	
+	private <T> boolean offer(ConcurrentMap<Integer, Queue<T>> arrays, int length, T array) {
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return false;
+		}
+		Queue<T> queue = arrays.get(length);
+		if (queue == null) {
+			queue = new ConcurrentLinkedQueue<T>();
+			Queue<T> previous = arrays.putIfAbsent(length, queue);
+			if (previous != null) {
+				queue = previous;
+			}
+		}
+		queue.offer(array);
+		return true;
+	}
+}
@@ -25,8 +25,10 @@
 
 package net.zschech.gwt.comet.server.deflate;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * This class implements the core DEFLATE process, i.e. the compression of data into DEFLATE blocks.
@@ -50,9 +52,11 @@ public final class Deflater {
 	 * empty, then filled up to a certain limit (a power of 2, at most 32768). Beyond that limit, it is managed as a
 	 * circular buffer.
 	 * 
-	 * To each data byte we associate a triplet, consisting of that byte and the next two bytes. We assemble triplets
-	 * into 24-bit values, such that the lower 8 bits are the most recently received. Each window slot contains a
-	 * triplet; hence, each input data byte appears in three distinct, successive slots in the window.
+	 * To each data byte we associate a triplet, consisting of that byte and the previous two bytes. We assemble
+	 * triplets into 24-bit values, such that the lower 8 bits are the most recently received. Each window slot contains
+	 * a single byte and the triplet of a slot is packed from that slot and the two preceding ones when it is needed;
+	 * hence a slot's triplet is lost as soon as the slot two places before it is overwritten, and the sequences are
+	 * matched from at most the window length minus 3 bytes back.
 	 * 
 	 * Window triplets are linked as hash chains, with the hashLink[] array. The hashTable[] array contains the chain
 	 * entry points.
@@ -67,12 +71,13 @@ public final class Deflater {
 	 */
 
 	/**
-	 * The window buffer. Entry of index "n" contains the triplet of bytes beginning at index "n".
+	 * The window buffer. Entry of index "n" contains the last byte of the triplet of index "n", see
+	 * {@link #triplet(byte[], int, int)}.
 	 */
-	private int[] window;
+	private byte[] window;
 	
 	/**
-	 * <code>windowPtr</code> contains the window index where the next triplet will go.
+	 * <code>windowPtr</code> contains the window index where the next byte will go.
 	 */
 	private int windowPtr;
 	
@@ -82,6 +87,12 @@ public final class Deflater {
 	 */
 	private int windowState;
 	
+	/**
+	 * The number of bytes before <code>windowPtr</code> which are contiguous data that later data may refer to, at most
+	 * the window length. It is reset along with the LZ77 history.
+	 */
+	private int windowFill;
+	
 	/**
 	 * <code>recentBytes</code> is a 16-bit value which contains the last two received bytes.
 	 */
@@ -183,6 +194,31 @@ public final class Deflater {
 	 */
 	private boolean huffOnly;
 	
+	/**
+	 * If <code>true</code>, then only stored (uncompressed) blocks are produced. This implies <code>huffOnly</code>.
+	 */
+	private boolean storedOnly;
+	
+	/**
+	 * The current compression level.
+	 */
+	private int level;
+	
+	/**
+	 * The maximum window bit size the window may grow to.
+	 */
+	private int maxWindowBits;
+	
+	/**
+	 * The hash table bit size, or 0 if the hash table is as large as the window.
+	 */
+	private int hashBits;
+	
+	/**
+	 * The number of bytes processed, and of compressed bytes output, since the window was allocated.
+	 */
+	private long growIn, growOut;
+	
 	/* =========================================================== */
 	/*
 	 * Output data management.
@@ -250,6 +286,45 @@ public final class Deflater {
 	 */
 	private boolean noOutput;
 	
+	/**
+	 * The length of the symbol buffer.
+	 */
+	private int bufferLen;
+	
+	/**
+	 * If not <code>null</code>, the symbol, uncompressed data and output buffers are released to this pool after a sync
+	 * flush and acquired again when more data is processed.
+	 */
+	private BufferPool bufferPool;
+	
+	/**
+	 * The symbol frequencies of the current block, reused by <code>endBlock()</code>.
+	 */
+	private final int[] freqLit = new int[286];
+	private final int[] freqDist = new int[30];
+	
+	/**
+	 * Blocks with fewer symbols than this only build their own dynamic Huffman codes if they are estimated to be
+	 * shorter than the fixed codes, see <code>endBlock()</code>.
+	 */
+	private static final int SMALL_BLOCK_LEN = 256;
+	
+	/**
+	 * The estimated length, in bits, of the code length of each used symbol in the tree representation of dynamic
+	 * Huffman codes.
+	 */
+	private static final int TREE_LEN_BITS = 4;
+	
+	/**
+	 * LOG2[n] is the base 2 logarithm of n, for the symbol counts of small blocks.
+	 */
+	private static final double[] LOG2 = new double[SMALL_BLOCK_LEN + 1];
+	
+	static {
+		for (int n = 1; n <= SMALL_BLOCK_LEN; n++)
+			LOG2[n] = Math.log(n) / Math.log(2);
+	}
+	
 	/* =========================================================== */
 
 	/**
@@ -274,6 +349,24 @@ public final class Deflater {
 	 */
 	public static final int COMPACT = 4;
 	
+	/**
+	 * Compression level 5: no compression at all, the data is sent in stored blocks. This is the fastest level and may
+	 * be used when the data turns out to be incompressible or when CPU is scarce.
+	 */
+	public static final int STORED = 5;
+	
+	/**
+	 * A window grows once this many times its length has been processed since it was allocated, see
+	 * {@link #Deflater(int, int, int, int, BufferPool)}.
+	 */
+	private static final int GROW_LENGTH = 4;
+	
+	/**
+	 * A window grows only if the data processed since it was allocated compressed to less than this ratio: poorly
+	 * compressible data does not have enough repetitions for a longer history to find more.
+	 */
+	private static final double GROW_RATIO = 0.75;
+	
 	/**
 	 * Build a deflater with the default parameters (<code>MEDIUM</code> level, 15-bit window).
 	 */
@@ -306,8 +399,53 @@ public final class Deflater {
 	 *            the window bit size (9 to 15)
 	 */
 	public Deflater(int level, int windowBits) {
+		this(level, windowBits, null);
+	}
+	
+	/**
+	 * Build a deflater with the provided compression strategy and window size, see {@link #Deflater(int, int)}. If the
+	 * buffer pool is not <code>null</code> then the symbol, uncompressed data and output buffers are only held while
+	 * there is data to compress: they are released to the pool after each sync flush. The window is always retained
+	 * since it is needed to compress the following data.
+	 * 
+	 * @param level
+	 *            the compression strategy
+	 * @param windowBits
+	 *            the window bit size (9 to 15)
+	 * @param bufferPool
+	 *            the pool to release buffers to, or <code>null</code>
+	 */
+	public Deflater(int level, int windowBits, BufferPool bufferPool) {
+		this(level, windowBits, windowBits, 0, bufferPool);
+	}
+	
+	/**
+	 * Build a deflater with the provided compression strategy, window and hash table sizes, see
+	 * {@link #Deflater(int, int, BufferPool)}. The hash table holds the heads of the hash chains; with fewer entries
+	 * than the window, the chains are longer and slower to walk but the table uses less memory. If the maximum window
+	 * size is greater than the initial window size, then the window grows at a sync flush once it has been filled four
+	 * times over with data compressing to less than 75%, that is for connections which send enough repetitive data to
+	 * benefit from a longer history. The LZ77 history is copied into the larger window and hashed again when the window
+	 * grows so the following data may still refer to it.
+	 * 
+	 * @param level
+	 *            the compression strategy
+	 * @param windowBits
+	 *            the initial window bit size (9 to 15)
+	 * @param maxWindowBits
+	 *            the maximum window bit size (<code>windowBits</code> to 15)
+	 * @param hashBits
+	 *            the hash table bit size (8 to 16), or 0 for a hash table as large as the window
+	 * @param bufferPool
+	 *            the pool to release buffers to, or <code>null</code>
+	 */
+	public Deflater(int level, int windowBits, int maxWindowBits, int hashBits, BufferPool bufferPool) {
 		if (windowBits < 9 || windowBits > 15)
 			throw new IllegalArgumentException("invalid LZ77 window bit length: " + windowBits);
+		if (maxWindowBits < windowBits || maxWindowBits > 15)
+			throw new IllegalArgumentException("invalid maximum LZ77 window bit length: " + maxWindowBits);
+		if (hashBits != 0 && (hashBits < 8 || hashBits > 16))
+			throw new IllegalArgumentException("invalid hash table bit length: " + hashBits);
 		
 		/*
 		 * The internal buffer should not be too large, because it prevents the Huffman codes from adapting to data
@@ -315,15 +453,146 @@ public final class Deflater {
 		 * become too expensive. The maximum value is 16384; to use something greater, the type 0 block code in
 		 * endBlock() would have to be adapted.
 		 */
-		int bufferLen = 16384;
+		bufferLen = 16384;
 		
+		this.maxWindowBits = maxWindowBits;
+		this.hashBits = hashBits;
+		allocateWindow(windowBits);
+		configure(level);
+		this.bufferPool = bufferPool;
+		if (bufferPool == null) {
+			buffer = new int[bufferLen];
+			ucBuffer = new byte[4 * bufferLen + 258];
+			outBuf = new byte[4096];
+		}
+	}
+	
+	/**
+	 * Allocate the window and hash chains for the provided window size. The LZ77 history is lost.
+	 * 
+	 * @param windowBits
+	 *            the window bit size
+	 */
+	private void allocateWindow(int windowBits) {
 		int windowLen = 1 << windowBits;
-		window = new int[windowLen];
+		window = new byte[windowLen];
 		windowLink = new char[windowLen];
-		hashTable = new char[windowLen];
+		hashTable = new char[hashBits == 0 ? windowLen : 1 << hashBits];
+		windowPtr = 0;
 		maxDistanceTriplet = windowLen - 261;
 		maxDistanceSeq1 = windowLen - 261;
 		maxDistanceSeq2 = windowLen - 261;
+		windowState = 0;
+		windowFill = 0;
+		seqLen = 0;
+		growIn = 0;
+		growOut = 0;
+	}
+	
+	/**
+	 * Get the current window size.
+	 * 
+	 * @return the window bit size
+	 */
+	public int getWindowBits() {
+		return Integer.numberOfTrailingZeros(window.length);
+	}
+	
+	/**
+	 * Grow the window if the data processed since the window was allocated is long enough to fill it several times
+	 * over, and compresses well enough for a longer history to be worth its memory. This is only called just after a
+	 * sync flush, when there is no dangling sequence.
+	 */
+	private void growWindow() {
+		int windowBits = getWindowBits();
+		if (windowBits >= maxWindowBits || growIn < (long) GROW_LENGTH << windowBits)
+			return;
+		if (growOut < growIn * GROW_RATIO) {
+			byte[] history = window;
+			// the HUFF and STORED levels do not maintain the window, it is reset when switching back from them
+			int historyLen = huffOnly ? 0 : windowFill;
+			int historyOff = (windowPtr - historyLen) & (history.length - 1);
+			allocateWindow(Math.min(windowBits + 2, maxWindowBits));
+			if (historyOff + historyLen <= history.length) {
+				insert(history, historyOff, historyLen);
+			}
+			else {
+				int tail = history.length - historyOff;
+				insert(history, historyOff, tail);
+				insert(history, 0, historyLen - tail);
+			}
+		}
+		else {
+			growIn = growOut = 0;
+		}
+	}
+	
+	/**
+	 * Add data to the LZ77 history without compressing it: the data is copied into the window and its triplets are
+	 * linked into the hash chains so that the following data may refer to it, but no symbol is output. This is used for
+	 * data which reaches the transport stream some other way. There must be no dangling sequence.
+	 * 
+	 * @param buf
+	 *            the data buffer
+	 * @param off
+	 *            the data offset
+	 * @param len
+	 *            the data length (in bytes)
+	 */
+	private void insert(byte[] buf, int off, int len) {
+		byte[] win = window;
+		int winMask = win.length - 1;
+		int winPtr = windowPtr;
+		int recent = recentBytes;
+		int state = windowState;
+		char[] wlink = windowLink;
+		char[] ht = hashTable;
+		int htMask = ht.length - 1;
+		windowFill = Math.min(windowFill + len, win.length);
+		while (len-- > 0) {
+			int b0 = buf[off++] & 0xFF;
+			win[winPtr] = (byte) b0;
+			if (state < 2) {
+				/*
+				 * The first two bytes do not complete a triplet.
+				 */
+				state++;
+			}
+			else {
+				int triplet = (recent << 8) | b0;
+				int h = (triplet + (triplet >>> 4) + (triplet >>> 8) + (triplet >>> 9) - (triplet >>> 16)) & htMask;
+				int link = ht[h] - 1;
+				int dist = 0;
+				if (link >= 0) {
+					dist = (winPtr - link) & winMask;
+					if (dist > winMask - 2) {
+						dist = 0;
+					}
+					else {
+						int pv = triplet(win, winMask, link);
+						int ph = (pv + (pv >>> 4) + (pv >>> 8) + (pv >>> 9) - (pv >>> 16)) & htMask;
+						if (ph != h)
+							dist = 0;
+					}
+				}
+				ht[h] = (char) (winPtr + 1);
+				wlink[winPtr] = (char) dist;
+			}
+			recent = ((recent << 8) | b0) & 0xFFFF;
+			winPtr = (winPtr + 1) & winMask;
+		}
+		windowPtr = winPtr;
+		recentBytes = recent;
+		windowState = state;
+	}
+	
+	/**
+	 * Set the compression parameters for the provided level.
+	 * 
+	 * @param level
+	 *            the compression level
+	 */
+	private void configure(int level) {
 		if (level == 0)
 			level = MEDIUM;
 		switch (level) {
@@ -349,14 +618,89 @@ public final class Deflater {
 			maxChainLengthSeq2 = 1024;
 			break;
 		case HUFF:
-			huffOnly = true;
+		case STORED:
 			break;
 		default:
 			throw new IllegalArgumentException("unknown compression level: " + level);
 		}
-		buffer = new int[bufferLen];
-		ucBuffer = new byte[4 * bufferLen + 258];
-		outBuf = new byte[4096];
+		huffOnly = (level == HUFF || level == STORED);
+		storedOnly = (level == STORED);
+		this.level = level;
+	}
+	
+	/**
+	 * Get the current compression level.
+	 * 
+	 * @return the compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Change the compression level. The new level applies to the data processed from now on; it is best called just
+	 * after a sync flush. When switching from the <code>HUFF</code> or <code>STORED</code> levels, which do not maintain
+	 * the LZ77 window, to an LZ77 level the window is reset so that no sequence is copied from stale data.
+	 * 
+	 * @param level
+	 *            the new compression level
+	 * @throws IOException
+	 *             on I/O error with the transport stream
+	 */
+	public void setLevel(int level) throws IOException {
+		if (level == 0)
+			level = MEDIUM;
+		if (level == this.level)
+			return;
+		boolean wasHuffOnly = huffOnly;
+		if (!wasHuffOnly && seqLen != 0) {
+			/*
+			 * Output the dangling sequence, the Huffman only loop does not track it.
+			 */
+			if (buffer == null)
+				acquireBuffers();
+			prepareFlush();
+		}
+		configure(level);
+		if (wasHuffOnly && !huffOnly)
+			resetWindow();
+	}
+	
+	/**
+	 * Forget the LZ77 history: no sequence processed from now on is copied from data processed before. There must be
+	 * no dangling sequence.
+	 */
+	private void resetWindow() {
+		Arrays.fill(hashTable, (char) 0);
+		windowState = 0;
+		windowFill = 0;
+		seqLen = 0;
+	}
+	
+	/**
+	 * Acquire the symbol, uncompressed data and output buffers from the buffer pool if they have been released.
+	 */
+	private void acquireBuffers() {
+		buffer = bufferPool.acquireInts(bufferLen);
+		ucBuffer = bufferPool.acquireBytes(4 * bufferLen + 258);
+		outBuf = bufferPool.acquireBytes(4096);
+	}
+	
+	/**
+	 * Release the symbol, uncompressed data and output buffers to the buffer pool. This is only done when they hold no
+	 * pending data, i.e. after a sync flush or terminate.
+	 */
+	private void releaseBuffers() {
+		if (bufferPool == null || buffer == null)
+			return;
+		if (bufferPtr != 0 || ucBufferPtr != 0 || outBufPtr != 0 || seqLen != 0)
+			return;
+		bufferPool.releaseInts(buffer);
+		bufferPool.releaseBytes(ucBuffer);
+		bufferPool.releaseBytes(outBuf);
+		buffer = null;
+		ucBuffer = null;
+		outBuf = null;
 	}
 	
 	/**
@@ -393,45 +737,12 @@ public final class Deflater {
 	 * @return the copy symbol
 	 */
 	private static int makeCopySymbol(int len, int dist) {
-		int symlen, elen;
-		if (len <= 10) {
-			symlen = 254 + len;
-			elen = 0;
-		}
-		else if (len == 258) {
-			symlen = 285;
-			elen = 0;
-		}
-		else {
-			/*
-			 * This may be optimized with a dichotomic search.
-			 */
-			int i;
-			for (i = 9; i < 29; i++)
-				if (LENGTH[i] > len)
-					break;
-			symlen = 256 + i;
-			elen = len - LENGTH[i - 1];
-		}
-		
-		int symdist, edist;
-		if (dist <= 4) {
-			symdist = dist - 1;
-			edist = 0;
-		}
-		else {
-			/*
-			 * This may be optimized with a dichotomic search.
-			 */
-			int i;
-			for (i = 5; i < 30; i++)
-				if (DIST[i] > dist)
-					break;
-			symdist = i - 1;
-			edist = dist - DIST[i - 1];
-		}
-		
-		return symlen + (elen << 9) + (symdist << 14) + (edist << 19);
+		/*
+		 * Both symbols are table lookups, see LENGTH_SYMBOL[] and DIST_SYMBOL[].
+		 */
+		int d = dist - 1;
+		int symdist = DIST_SYMBOL[d < 256 ? d : 256 + (d >>> 7)];
+		return LENGTH_SYMBOL[len] + (symdist << 14) + ((dist - DIST[symdist]) << 19);
 	}
 	
 	/**
@@ -460,7 +771,12 @@ public final class Deflater {
 	 *            the maximum accepted distance
 	 * @return the previous longer sequence distance, or 0 if not found
 	 */
-	private static int findPreviousSequence(int[] win, int winMask, char[] wlink, int orig, int dist, int len, int end, int maxLen, int maxDist) {
+	private static int findPreviousSequence(byte[] win, int winMask, char[] wlink, int orig, int dist, int len, int end, int maxLen, int maxDist) {
+		/*
+		 * The triplets of both sequences are compared byte by byte, from the two bytes preceding their first triplet
+		 * slot. The byte following the candidate sequence is compared first since it is the most likely to differ.
+		 */
+		byte last = (byte) end;
 		int n = orig;
 		int chainLength = maxLen;
 		loop: while (chainLength-- > 0) {
@@ -471,44 +787,31 @@ public final class Deflater {
 			if (dist > maxDist)
 				return 0;
 			n = (n - d) & winMask;
-			int tm = len;
-			int j = orig, k = n;
-			if (tm >= 3) {
-				while (tm >= 3) {
-					if (win[j] != win[k])
-						continue loop;
-					tm -= 3;
-					j = (j + 3) & winMask;
-					k = (k + 3) & winMask;
-				}
-				switch (tm) {
-				case 1:
-					j = (j - 2) & winMask;
-					k = (k - 2) & winMask;
-					if (win[j] != win[k])
-						continue loop;
-					k = (k + 3) & winMask;
-					break;
-				case 2:
-					j = (j - 1) & winMask;
-					k = (k - 1) & winMask;
-					if (win[j] != win[k])
-						continue loop;
-					k = (k + 3) & winMask;
-					break;
-				}
-			}
-			else {
-				if (win[j] != win[k])
+			if (win[(n + len) & winMask] != last)
+				continue loop;
+			for (int i = -2; i < len; i++)
+				if (win[(orig + i) & winMask] != win[(n + i) & winMask])
 					continue loop;
-				k = (k + tm) & winMask;
-			}
-			if (win[k] == end)
-				return dist;
+			return dist;
 		}
 		return 0;
 	}
 	
+	/**
+	 * Pack the triplet of the provided window slot, that is the byte of that slot and the two bytes preceding it.
+	 * 
+	 * @param win
+	 *            the window buffer
+	 * @param winMask
+	 *            the window buffer length, minus one
+	 * @param n
+	 *            the triplet window index
+	 * @return the triplet
+	 */
+	private static int triplet(byte[] win, int winMask, int n) {
+		return ((win[(n - 2) & winMask] & 0xFF) << 16) | ((win[(n - 1) & winMask] & 0xFF) << 8) | (win[n] & 0xFF);
+	}
+	
 	/**
 	 * Update the <code>ucBuffer</code> array with the provided uncompressed data. This must be done before ending the
 	 * block.
@@ -558,6 +861,9 @@ public final class Deflater {
 	public void process(byte[] buf, int off, int len) throws IOException {
 		if (len == 0)
 			return;
+		if (buffer == null)
+			acquireBuffers();
+		growIn += len;
 		int origOff = off;
 		
 		/*
@@ -582,14 +888,23 @@ public final class Deflater {
 			return;
 		}
 		
+		windowFill = Math.min(windowFill + len, window.length);
+		
 		/*
 		 * We have some special code for the first two bytes ever.
 		 */
 		if (windowState < 2) {
+			int winMask = window.length - 1;
 			int bv = buf[off++] & 0xFF;
 			len--;
 			if (windowState == 0) {
+				/*
+				 * The first two bytes go into the window so that the first triplet can be packed from it.
+				 */
+				window[windowPtr] = (byte) bv;
+				windowPtr = (windowPtr + 1) & winMask;
 				recentBytes = bv;
+				windowState = 1;
 				seqLen = 1;
 				if (len == 0) {
 					updateUCBuffer(buf, origOff, off);
@@ -598,9 +913,11 @@ public final class Deflater {
 				bv = buf[off++] & 0xFF;
 				len--;
 			}
+			window[windowPtr] = (byte) bv;
+			windowPtr = (windowPtr + 1) & winMask;
 			recentBytes = (recentBytes << 8) | bv;
 			windowState = 2;
-			seqLen = 2;
+			seqLen++;
 			if (len == 0) {
 				updateUCBuffer(buf, origOff, off);
 				return;
@@ -610,7 +927,7 @@ public final class Deflater {
 		/*
 		 * We cache most instance fields in local variables. This helps the JIT compiler produce efficient code.
 		 */
-		int[] win = window;
+		byte[] win = window;
 		int winMask = win.length - 1;
 		int winPtr = windowPtr;
 		int recent = recentBytes;
@@ -644,7 +961,7 @@ public final class Deflater {
 			/*
 			 * Update the window and set hash links.
 			 */
-			win[winPtr] = triplet;
+			win[winPtr] = (byte) b0;
 			int h = (triplet + (triplet >>> 4) + (triplet >>> 8) + (triplet >>> 9) - (triplet >>> 16)) & htMask;
 			int link = ht[h] - 1;
 			int dist;
@@ -652,13 +969,18 @@ public final class Deflater {
 				dist = 0;
 			}
 			else {
-				int pv = win[link];
-				int ph = (pv + (pv >>> 4) + (pv >>> 8) + (pv >>> 9) - (pv >>> 16)) & htMask;
-				if (ph == h) {
-					dist = (winPtr - link) & winMask;
+				/*
+				 * The chain head's triplet is only still in the window if its first byte has not been overwritten.
+				 */
+				dist = (winPtr - link) & winMask;
+				if (dist > winMask - 2) {
+					dist = 0;
 				}
 				else {
-					dist = 0;
+					int pv = triplet(win, winMask, link);
+					int ph = (pv + (pv >>> 4) + (pv >>> 8) + (pv >>> 9) - (pv >>> 16)) & htMask;
+					if (ph != h)
+						dist = 0;
 				}
 			}
 			ht[h] = (char) (winPtr + 1);
@@ -680,7 +1002,7 @@ public final class Deflater {
 			 * If we just completed a triplet, then we look for a previous triplet. If we find one, then we begin a
 			 * match sequence; otherwise, we emit a literal for the first byte of our triplet, and we continue. There is
 			 * a corner case when the previous triplet is at the maximum distance: in that situation, we must emit the
-			 * copy symbol immediately.
+			 * copy symbol immediately, before the first byte of the previous triplet is overwritten.
 			 */
 			if (sLen == 2) {
 				if (dist == 0) {
@@ -698,7 +1020,7 @@ public final class Deflater {
 					int n = link;
 					int chainLen = maxCL0;
 					while (chainLen-- > 0) {
-						if (win[n] == triplet)
+						if (win[n] == win[thisPtr] && triplet(win, winMask, n) == triplet)
 							break findTriplet;
 						int d = wlink[n];
 						if (d == 0)
@@ -723,7 +1045,7 @@ public final class Deflater {
 				else {
 					sPtr = (thisPtr - sDist) & winMask;
 					sLen = 3;
-					if (sPtr == winPtr) {
+					if (((sPtr - 2) & winMask) == winPtr) {
 						sb[sbPtr++] = makeCopySymbol(sLen, sDist);
 						if (sbPtr == sbLen) {
 							updateUCBuffer(buf, origOff, off);
@@ -741,9 +1063,12 @@ public final class Deflater {
 			 * We are currently matching a sequence. We try to augment it. If we can, then we just do that; but we must
 			 * mind the maximum sequence length and also its distance.
 			 */
-			if (win[(thisPtr - sDist) & winMask] == triplet) {
+			/*
+			 * The two bytes before the current byte already match, so only the current byte is compared.
+			 */
+			if (win[(thisPtr - sDist) & winMask] == win[thisPtr]) {
 				sLen++;
-				if (sPtr == winPtr || sLen == 258) {
+				if (((sPtr - 2) & winMask) == winPtr || sLen == 258) {
 					sb[sbPtr++] = makeCopySymbol(sLen, sDist);
 					if (sbPtr == sbLen) {
 						updateUCBuffer(buf, origOff, off);
@@ -764,7 +1089,7 @@ public final class Deflater {
 				sDist = sDistNew;
 				sPtr = (thisPtr - (sLen - 2) - sDistNew) & winMask;
 				sLen++;
-				if (sPtr == winPtr || sLen == 258) {
+				if (((sPtr - 2) & winMask) == winPtr || sLen == 258) {
 					sb[sbPtr++] = makeCopySymbol(sLen, sDist);
 					if (sbPtr == sbLen) {
 						updateUCBuffer(buf, origOff, off);
@@ -788,7 +1113,7 @@ public final class Deflater {
 					mdc = sDist;
 				sDistNew = findPreviousSequence(win, winMask, wlink, refPtr, 0, sLen - 3, triplet, maxCL2, mdc);
 				if (sDistNew > 0) {
-					sb[sbPtr++] = win[sPtr] >>> 16;
+					sb[sbPtr++] = triplet(win, winMask, sPtr) >>> 16;
 					if (sbPtr == sbLen) {
 						updateUCBuffer(buf, origOff, off);
 						origOff = off;
@@ -797,7 +1122,7 @@ public final class Deflater {
 					}
 					sDist = sDistNew;
 					sPtr = (refPtr - sDistNew) & winMask;
-					if (sPtr == winPtr) {
+					if (((sPtr - 2) & winMask) == winPtr) {
 						sb[sbPtr++] = makeCopySymbol(sLen, sDist);
 						if (sbPtr == sbLen) {
 							updateUCBuffer(buf, origOff, off);
@@ -820,7 +1145,7 @@ public final class Deflater {
 			 * compares with what gzip produces. It seems that the "right" value is 6144.
 			 */
 			if (sLen == 3 && sDist > 6144) {
-				int ot = win[sPtr];
+				int ot = triplet(win, winMask, sPtr);
 				for (int k = 16; k >= 0; k -= 8) {
 					sb[sbPtr++] = (ot >>> k) & 0xFF;
 					if (sbPtr == sbLen) {
@@ -1042,11 +1367,20 @@ public final class Deflater {
 		 * Since the frequencies use the upper bits, we can compare those values directly. A side effect is that no two
 		 * values will be considered as equal to each other, even for two symbols which occur with the same frequency;
 		 * this is harmless.
+		 * 
+		 * Only the symbols which occur are sorted, they are placed at the end of freqTmp[] after the symbols with
+		 * frequency zero (whose values are left at zero). Small blocks only use a few of the symbols, so this is much
+		 * cheaper than sorting the whole alphabet.
 		 */
 		int[] freqTmp = new int[alphLen];
+		int used = 0;
 		for (int i = 0; i < alphLen; i++)
-			freqTmp[i] = i + (1 << 9) + (freq[i] << 10);
-		heapSort(freqTmp, 0, alphLen);
+			if (freq[i] != 0)
+				used++;
+		for (int i = 0, j = alphLen - used; i < alphLen; i++)
+			if (freq[i] != 0)
+				freqTmp[j++] = i + (1 << 9) + (freq[i] << 10);
+		heapSort(freqTmp, alphLen - used, used);
 		
 		/*
 		 * We skip the values with frequency zero; they will not take part in the tree construction. We handle
@@ -1437,6 +1771,7 @@ public final class Deflater {
 	private void sendBuffered() throws IOException {
 		if (outBufPtr > 0) {
 			out.write(outBuf, 0, outBufPtr);
+			growOut += outBufPtr;
 			outBufPtr = 0;
 		}
 	}
@@ -1461,8 +1796,10 @@ public final class Deflater {
 		
 		int[] sb = buffer;
 		
-		int[] freqLit = new int[286];
-		int[] freqDist = new int[30];
+		int[] freqLit = this.freqLit;
+		int[] freqDist = this.freqDist;
+		Arrays.fill(freqLit, 0);
+		Arrays.fill(freqDist, 0);
 		
 		/*
 		 * Do not forget the EOB symbol.
@@ -1509,9 +1846,32 @@ public final class Deflater {
 		/*
 		 * Compute the dynamic Huffman codes and get the lengths for dynamic and fixed codes.
 		 */
-		Huff huff = new Huff(freqLit, freqDist);
-		int csD = huff.getDynamicBitLength();
-		int csF = huff.getFixedBitLength();
+		Huff huff = null;
+		int csD = Integer.MAX_VALUE;
+		int csF = Integer.MAX_VALUE;
+		if (storedOnly) {
+			/*
+			 * Only uncompressed blocks.
+			 */
+		}
+		else if (sbPtr < SMALL_BLOCK_LEN) {
+			/*
+			 * Small blocks, typically a few messages followed by a sync flush, are rarely worth building dynamic
+			 * codes for: the tree representation alone often costs more than the codes save. We only build them
+			 * if their estimated length beats the uncompressed and fixed codes lengths, i.e. when the fixed codes
+			 * are clearly worse; otherwise we choose between uncompressed and fixed codes.
+			 */
+			csF = getFixedBitLength(freqLit, freqDist);
+			if (getDynamicBitLengthEstimate(freqLit, freqDist) < Math.min(csU, csF)) {
+				huff = new Huff(freqLit, freqDist);
+				csD = huff.getDynamicBitLength();
+			}
+		}
+		else {
+			huff = new Huff(freqLit, freqDist);
+			csD = huff.getDynamicBitLength();
+			csF = huff.getFixedBitLength();
+		}
 		
 		/*
 		 * We now have the bit lengths for uncompressed blocks (csU), fixed Huffman codes (csF) and dynamic Huffman
@@ -1676,6 +2036,109 @@ public final class Deflater {
 		ucBufferPtr = uRealLen - uDataLen;
 	}
 	
+	/**
+	 * Get the block length, in bits, if fixed Huffman codes are used.
+	 * 
+	 * @param freqLit
+	 *            the literal+length frequencies
+	 * @param freqDist
+	 *            the distance frequencies
+	 * @return the block length with fixed codes
+	 */
+	private static int getFixedBitLength(int[] freqLit, int[] freqDist) {
+		int csF = 3;
+		for (int i = 0; i < 286; i++) {
+			int f = freqLit[i];
+			if (f == 0)
+				continue;
+			if (i < 256)
+				csF += ((i < 144) ? 8 : 9) * f;
+			else
+				csF += (((i < 280) ? 7 : 8) + ((i >= 257) ? LENGTH_ENUM[i - 257] : 0)) * f;
+		}
+		for (int i = 0; i < 30; i++)
+			csF += (5 + DIST_ENUM[i]) * freqDist[i];
+		return csF;
+	}
+	
+	/**
+	 * Estimate the block length, in bits, if dynamic Huffman codes are used, without building them. The codes of
+	 * each alphabet cost at least the entropy of its symbols. The tree representation is estimated as the block and
+	 * tree headers, four code length codes, TREE_LEN_BITS for each used symbol, and the cheapest possible encoding of
+	 * each run of unused symbols. The symbol counts must not exceed SMALL_BLOCK_LEN.
+	 * 
+	 * @param freqLit
+	 *            the literal+length frequencies
+	 * @param freqDist
+	 *            the distance frequencies
+	 * @return the estimated block length with dynamic codes
+	 */
+	private static int getDynamicBitLengthEstimate(int[] freqLit, int[] freqDist) {
+		double cs = 17 + 4 * 3;
+		int nLit = 0, nDist = 0;
+		for (int i = 0; i < 286; i++)
+			nLit += freqLit[i];
+		for (int i = 0; i < 30; i++)
+			nDist += freqDist[i];
+		
+		/*
+		 * The code lengths of both alphabets are encoded as one sequence of at least 257 literal+length and one
+		 * distance code lengths. Runs of zeros may be encoded with the repeat codes 17 (3 to 10 zeros, 3 extra
+		 * bits) and 18 (11 to 138 zeros, 7 extra bits), and every code length code is at least one bit long.
+		 */
+		int lastLit = 256, lastDist = 0;
+		for (int i = 0; i < 286; i++)
+			if (freqLit[i] != 0 && i > lastLit)
+				lastLit = i;
+		for (int i = 0; i < 30; i++)
+			if (freqDist[i] != 0)
+				lastDist = i;
+		int zeros = 0;
+		for (int k = 0; k <= lastLit + 1 + lastDist; k++) {
+			int f, n, extra;
+			if (k <= lastLit) {
+				f = freqLit[k];
+				n = nLit;
+				extra = (k >= 257) ? LENGTH_ENUM[k - 257] : 0;
+			}
+			else {
+				f = freqDist[k - lastLit - 1];
+				n = nDist;
+				extra = DIST_ENUM[k - lastLit - 1];
+			}
+			if (f == 0) {
+				zeros++;
+				continue;
+			}
+			if (zeros > 0) {
+				cs += getZeroRunBound(zeros);
+				zeros = 0;
+			}
+			cs += TREE_LEN_BITS + f * (LOG2[n] - LOG2[f] + extra);
+		}
+		if (zeros > 0)
+			cs += getZeroRunBound(zeros);
+		return (int) cs;
+	}
+	
+	/**
+	 * Get a lower bound of the length, in bits, of a run of zero code lengths in the tree representation.
+	 * 
+	 * @param zeros
+	 *            the number of zero code lengths
+	 * @return the lower bound of the run length
+	 */
+	private static int getZeroRunBound(int zeros) {
+		if (zeros < 3)
+			return zeros;
+		if (zeros <= 10)
+			return Math.min(zeros, 4);
+		/*
+		 * One code 18 (8 bits), or at least two codes including a code 17 (4 bits).
+		 */
+		return Math.max(5, (8 * zeros + 137) / 138);
+	}
+	
 	/**
 	 * Instances of this class compute the dynamic Huffman codes for some frequencies, and report the resulting length,
 	 * for both dynamic and static codes.
@@ -1924,6 +2387,8 @@ public final class Deflater {
 	 *             on I/O error with the transport stream
 	 */
 	public void terminate() throws IOException {
+		if (buffer == null)
+			acquireBuffers();
 		prepareFlush();
 		if (bufferPtr == 0) {
 			writeEmptySH(true);
@@ -1934,6 +2399,7 @@ public final class Deflater {
 		if (outPtr > 0)
 			writeBits(0, 8 - outPtr);
 		sendBuffered();
+		releaseBuffers();
 	}
 	
 	/**
@@ -1948,14 +2414,81 @@ public final class Deflater {
 	 *             on I/O error with the transport stream
 	 */
 	public void flushSync(boolean withData) throws IOException {
+		if (buffer == null)
+			acquireBuffers();
 		prepareFlush();
 		if (bufferPtr != 0)
 			endBlock(false, bufferPtr);
 		writeEmptyUD(false, withData);
 		sendBuffered();
+		releaseBuffers();
+		growWindow();
 	}
 	
 	
+	/**
+	 * Write deflate blocks which were compressed independently of this stream, such as those produced by
+	 * {@link #compressBlocks}, straight to the transport stream. The blocks must start on a byte boundary, must not
+	 * refer to any data preceding them, must not be final, and must end on a byte boundary. If data has been processed
+	 * since the last flush then a sync flush is performed first. The blocks' uncompressed data is added to the LZ77
+	 * window and hash chains without being compressed again, so the following data may refer to it as well as to the
+	 * data before the blocks. The transport stream is NOT flushed.
+	 * 
+	 * @param buf
+	 *            the compressed blocks
+	 * @param off
+	 *            the blocks offset
+	 * @param len
+	 *            the blocks length (in bytes)
+	 * @param data
+	 *            the blocks' uncompressed data
+	 * @param dataOff
+	 *            the uncompressed data offset
+	 * @param dataLen
+	 *            the uncompressed data length (in bytes)
+	 * @throws IOException
+	 *             on I/O error with the transport stream
+	 */
+	public void writeBlocks(byte[] buf, int off, int len, byte[] data, int dataOff, int dataLen) throws IOException {
+		if (buffer != null && (bufferPtr != 0 || seqLen != 0 || outPtr != 0 || outBufPtr != 0))
+			flushSync(true);
+		out.write(buf, off, len);
+		// the HUFF and STORED levels do not maintain the window, it is reset when switching back from them
+		if (!huffOnly)
+			insert(data, dataOff, dataLen);
+	}
+	
+	/**
+	 * Compress the provided data into deflate blocks which do not refer to any data preceding them and which end with
+	 * a sync flush. The result can be spliced into any deflate stream at a byte boundary, see {@link #writeBlocks}.
+	 * The window size is the smallest which covers the data.
+	 * 
+	 * @param buf
+	 *            the data buffer
+	 * @param off
+	 *            the data offset
+	 * @param len
+	 *            the data length (in bytes)
+	 * @param level
+	 *            the compression level
+	 * @param bufferPool
+	 *            the pool to acquire the compression buffers from, or <code>null</code>
+	 * @return the compressed blocks
+	 * @throws IOException
+	 *             never, the blocks are compressed in memory
+	 */
+	public static byte[] compressBlocks(byte[] buf, int off, int len, int level, BufferPool bufferPool) throws IOException {
+		int windowBits = 9;
+		while (windowBits < 15 && (1 << windowBits) < len + 262)
+			windowBits ++;
+		Deflater deflater = new Deflater(level, windowBits, bufferPool);
+		ByteArrayOutputStream out = new ByteArrayOutputStream((len >>> 1) + 64);
+		deflater.setOut(out);
+		deflater.process(buf, off, len);
+		deflater.flushSync(true);
+		return out.toByteArray();
+	}
+	
 	/**
 	 * <code>LENGTH[n]</code> contains the sequence copy length
 	 * when the symbol <code>257+n</code> has been read. The actual
@@ -2021,6 +2554,43 @@ public final class Deflater {
 		}
 	}
 
+	/**
+	 * <code>LENGTH_SYMBOL[n]</code> contains the literal+length
+	 * symbol and its extra bits (shifted by 9 bits) for the copy
+	 * length <code>n</code> (3 to 258), as used in copy symbols.
+	 */
+	static final int[] LENGTH_SYMBOL;
+
+	/**
+	 * <code>DIST_SYMBOL[n]</code> contains the distance symbol
+	 * for the distance <code>n+1</code> if <code>n</code> is lower
+	 * than 256, and for the distances <code>d</code> such that
+	 * <code>((d-1) >>> 7) + 256 == n</code> otherwise (distance
+	 * symbols above 15 have at least 7 extra bits, so this is
+	 * exact; zlib uses the same trick).
+	 */
+	static final int[] DIST_SYMBOL;
+
+	static {
+		LENGTH_SYMBOL = new int[259];
+		int i = 0;
+		for (int len = 3; len < 258; len ++) {
+			while (i < 28 && LENGTH[i + 1] <= len)
+				i ++;
+			LENGTH_SYMBOL[len] = (257 + i) + ((len - LENGTH[i]) << 9);
+		}
+		LENGTH_SYMBOL[258] = 285;
+
+		DIST_SYMBOL = new int[512];
+		for (int n = 0; n < 512; n ++) {
+			int dist = n < 256 ? n + 1 : ((n - 256) << 7) + 1;
+			int s = 0;
+			while (s < 29 && DIST[s + 1] <= dist)
+				s ++;
+			DIST_SYMBOL[n] = s;
+		}
+	}
+
 	/**
 	 * This array encodes the permutation for the values encoding
 	 * the RLE-compressed trees.
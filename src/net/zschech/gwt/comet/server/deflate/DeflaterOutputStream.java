@@ -42,7 +42,7 @@ import java.io.OutputStream;
  * @author Thomas Pornin
  */
 
-public class DeflaterOutputStream extends OutputStream {
+public class DeflaterOutputStream extends OutputStream implements BlockWriter {
 	
 	private Deflater deflater;
 	
@@ -70,7 +70,39 @@ public class DeflaterOutputStream extends OutputStream {
 	 *             on I/O error with the transport stream
 	 */
 	public DeflaterOutputStream(OutputStream out, int level) throws IOException {
-		deflater = new Deflater(level);
+		this(out, level, null);
+	}
+	
+	/**
+	 * Create the stream with the provided transport stream and compression level. If the buffer pool is not
+	 * <code>null</code> then the compression buffers are released to it after each flush.
+	 * 
+	 * @param out
+	 *            the transport stream
+	 * @param level
+	 *            the compression level
+	 * @param bufferPool
+	 *            the pool to release buffers to, or <code>null</code>
+	 * @throws IOException
+	 *             on I/O error with the transport stream
+	 */
+	public DeflaterOutputStream(OutputStream out, int level, BufferPool bufferPool) throws IOException {
+		this(out, new Deflater(level, 15, bufferPool));
+	}
+	
+	/**
+	 * Create the stream with the provided transport stream and deflater, which allows the deflater's window and hash
+	 * table sizes to be chosen.
+	 * 
+	 * @param out
+	 *            the transport stream
+	 * @param deflater
+	 *            the deflater
+	 * @throws IOException
+	 *             on I/O error with the transport stream
+	 */
+	public DeflaterOutputStream(OutputStream out, Deflater deflater) throws IOException {
+		this.deflater = deflater;
 		deflater.setOut(out);
 	}
 	
@@ -117,4 +149,10 @@ public class DeflaterOutputStream extends OutputStream {
 	public void write(byte[] buf, int off, int len) throws IOException {
 		deflater.process(buf, off, len);
 	}
+	
+	/** @see BlockWriter */
+	@Override
+	public void writeBlocks(byte[] buf, int off, int len, byte[] data, int dataOff, int dataLen) throws IOException {
+		deflater.writeBlocks(buf, off, len, data, dataOff, dataLen);
+	}
 }
@@ -15,7 +15,6 @@
  */
 package net.zschech.gwt.comet.server.impl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
@@ -23,6 +22,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -38,7 +39,14 @@ import com.sun.grizzly.comet.CometWriter;
 
 public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServlet {
 	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+	
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
 	private final Field socketChannelField;
+	private final ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
 	
 	private CometEngine cometEngine;
 	private CometContext<?> cometContext;
@@ -94,7 +102,7 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 		
 		if (session != null) {
 			GrizzyOutputStream asyncOutputStream = (GrizzyOutputStream) response.getAsyncOutputStream();
-			asyncOutputStream.wrapped = new GrizzyAsyncBufferOutputStream(handler);
+			asyncOutputStream.wrapped = new GrizzyAsyncBufferOutputStream(handler, bufferPool);
 		}
 		
 		return handler;
@@ -125,17 +133,28 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 	public void enqueued(CometSessionImpl session) {
 		CometServletResponseImpl response = session.getResponse();
 		if (response != null) {
-			if (response.setProcessing(true)) {
-				synchronized (response) {
-					if (!response.isTerminated()) {
-						Object suspendInfo = response.getSuspendInfo();
-						if (suspendInfo != null) {
-							CometHandlerImpl handler = (CometHandlerImpl) suspendInfo;
+			write(response);
+		}
+	}
+	
+	/**
+	 * Registers the response's Comet handler for an async write unless it is already processing. The registration is
+	 * handed off to Grizzly's thread pool so enqueuing threads never contend on the response. Messages enqueued before
+	 * the response is suspended are written when it is suspended so the processing flag is not taken until then.
+	 */
+	private void write(final CometServletResponseImpl response) {
+		final CometHandlerImpl handler = (CometHandlerImpl) response.getSuspendInfo();
+		if (handler != null && response.setProcessing(true)) {
+			cometEngine.getThreadPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (response) {
+						if (!response.isTerminated()) {
 							handler.registerAsyncWrite();
 						}
 					}
 				}
-			}
+			});
 		}
 	}
 	
@@ -156,7 +175,15 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 		private final CometSessionImpl session;
 		private final boolean chunked;
 		private volatile boolean active;
-		private volatile ByteBuffer buffer;
+		
+		// the pending data buffers and the chunk header and trailer are only accessed by the thread writing to the socket
+		private final List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+		private final ByteBuffer chunkHeader = ByteBuffer.allocateDirect(10);
+		private final ByteBuffer chunkTrailer = ByteBuffer.allocateDirect(2);
+		private ByteBuffer[] pending = new ByteBuffer[8];
+		private int pendingOffset;
+		private int pendingLength;
+		
 		private volatile AtomicInteger activeFailureCount = new AtomicInteger();
 		private AtomicBoolean registered = new AtomicBoolean();
 		
@@ -256,7 +283,8 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 					GrizzyAsyncBufferOutputStream output = (GrizzyAsyncBufferOutputStream) ((GrizzyOutputStream) response.getAsyncOutputStream()).getWrapped();
 					
 					while (true) {
-						if (buffer == null || !buffer.hasRemaining()) {
+						if (pendingLength == 0) {
+							releaseData();
 							synchronized (response) {
 								int count;
 								while ((count = output.getCount()) == 0 && !session.isEmpty()) {
@@ -264,48 +292,37 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 								}
 								
 								if (count == 0) {
-									buffer = null;
 									break;
 								}
 								
-								byte[] bytes = output.getBytes();
-								if (chunked) {
-									byte[] chunkLength = Integer.toHexString(count).getBytes("ASCII");
-									
-									buffer = ByteBuffer.allocate(chunkLength.length + count + 4);
-									buffer.put(chunkLength);
-									buffer.put((byte) '\r');
-									buffer.put((byte) '\n');
-									buffer.put(bytes, 0, count);
-									buffer.put((byte) '\r');
-									buffer.put((byte) '\n');
-									buffer.flip();
-								}
-								else {
-									buffer = ByteBuffer.wrap(bytes, 0, count);
-								}
-								output.clear();
+								output.drainTo(data);
+								preparePending(count);
 							}
 						}
 						
-						int write = socketChannel.write(buffer);
-						if (write <= 0) {
+						long write = socketChannel.write(pending, pendingOffset, pendingLength);
+						while (pendingLength > 0 && !pending[pendingOffset].hasRemaining()) {
+							pendingOffset++;
+							pendingLength--;
+						}
+						if (pendingLength > 0 && write <= 0) {
 							// can't write any more
 							cometContext.registerAsyncWrite(this);
 							break;
 						}
-						else if (!buffer.hasRemaining()) {
-							buffer = null;
-						}
 					}
 					
-					if (buffer == null) {
+					if (pendingLength == 0) {
 						if (response.isTerminated()) {
 							cometContext.resumeCometHandler(this);
 						}
 						else {
 							registered.set(false);
 							response.setProcessing(false);
+							// pick up messages enqueued while the processing flag was set
+							if (session != null && !session.isEmpty()) {
+								write(response);
+							}
 						}
 					}
 				}
@@ -317,6 +334,50 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 				}
 			}
 		}
+		
+		/**
+		 * Sets up the pending buffers for a gathering write of the data buffers framed by the chunk header and trailer.
+		 */
+		private void preparePending(int count) {
+			int length = data.size() + (chunked ? 2 : 0);
+			if (pending.length < length) {
+				pending = new ByteBuffer[Math.max(length, pending.length * 2)];
+			}
+			
+			int i = 0;
+			if (chunked) {
+				chunkHeader.clear();
+				int shift = 28;
+				while (shift > 0 && (count >>> shift) == 0) {
+					shift -= 4;
+				}
+				for (; shift >= 0; shift -= 4) {
+					chunkHeader.put((byte) Character.forDigit((count >>> shift) & 0xF, 16));
+				}
+				chunkHeader.put(CR).put(LF).flip();
+				pending[i++] = chunkHeader;
+			}
+			for (ByteBuffer buffer : data) {
+				pending[i++] = buffer;
+			}
+			if (chunked) {
+				chunkTrailer.clear();
+				chunkTrailer.put(CR).put(LF).flip();
+				pending[i++] = chunkTrailer;
+			}
+			pendingOffset = 0;
+			pendingLength = i;
+		}
+		
+		private void releaseData() {
+			for (ByteBuffer buffer : data) {
+				bufferPool.release(buffer);
+			}
+			data.clear();
+			for (int i = 0; i < pending.length && pending[i] != null; i++) {
+				pending[i] = null;
+			}
+		}
 	}
 	
 	private static class GrizzyOutputStream extends OutputStream {
@@ -357,12 +418,20 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 		}
 	}
 	
-	private static class GrizzyAsyncBufferOutputStream extends ByteArrayOutputStream {
+	/**
+	 * Buffers the response data in pooled direct buffers until the Comet handler writes them to the socket channel.
+	 * Only accessed while holding the Comet response's lock.
+	 */
+	private static class GrizzyAsyncBufferOutputStream extends OutputStream {
 		
 		private final CometHandlerImpl handler;
+		private final ByteBufferPool bufferPool;
+		private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		private int count;
 		
-		private GrizzyAsyncBufferOutputStream(CometHandlerImpl handler) {
+		private GrizzyAsyncBufferOutputStream(CometHandlerImpl handler, ByteBufferPool bufferPool) {
 			this.handler = handler;
+			this.bufferPool = bufferPool;
 		}
 		
 		@Override
@@ -372,27 +441,47 @@ public abstract class AbstractGrizzlyAsyncServlet extends NonBlockingAsyncServle
 		
 		@Override
 		public void write(byte[] b, int off, int len) {
-			super.write(b, off, len);
+			while (len > 0) {
+				ByteBuffer buffer = getBuffer();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+				count += n;
+			}
 			handler.registerAsyncWrite();
 		}
 		
 		@Override
 		public void write(int b) {
-			super.write(b);
+			getBuffer().put((byte) b);
+			count++;
 			handler.registerAsyncWrite();
 		}
 		
-		public byte[] getBytes() {
-			return buf;
+		private ByteBuffer getBuffer() {
+			ByteBuffer buffer = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+			if (buffer == null || !buffer.hasRemaining()) {
+				buffer = bufferPool.acquire();
+				buffers.add(buffer);
+			}
+			return buffer;
 		}
 		
 		public int getCount() {
 			return count;
 		}
 		
-		public void clear() {
+		/**
+		 * Moves the buffered data to the list of buffers ready to be written.
+		 */
+		public void drainTo(List<ByteBuffer> data) {
+			for (ByteBuffer buffer : buffers) {
+				buffer.flip();
+				data.add(buffer);
+			}
+			buffers.clear();
 			count = 0;
-			buf = new byte[buf.length];
 		}
 	}
 }
@@ -18,7 +18,13 @@ package net.zschech.gwt.comet.server.impl;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -29,13 +35,22 @@ public abstract class AsyncServlet {
 	
 	public static final String SERVLET_CONTEXT_KEY = AsyncServlet.class.getName();
 	
+	/**
+	 * The servlet context attribute describing which AsyncServlet implementation was selected and why.
+	 */
+	public static final String SELECTION_CONTEXT_KEY = SERVLET_CONTEXT_KEY + ".selection";
+	
 	public static AsyncServlet initialize(ServletContext context) {
 		synchronized (context) {
 			AsyncServlet async = (AsyncServlet) context.getAttribute(SERVLET_CONTEXT_KEY);
 			if (async == null) {
 				String serverInfo = context.getServerInfo();
 				String server = context.getInitParameter(SERVLET_CONTEXT_KEY);
-				if (server == null) {
+				StringBuilder reason = new StringBuilder();
+				if (server != null) {
+					reason.append("configured by context parameter ").append(SERVLET_CONTEXT_KEY);
+				}
+				else {
 					if (serverInfo.startsWith("jetty-6") || serverInfo.startsWith("jetty/6")) {
 						// e.g. jetty-6.1.x
 						server = "Jetty6";
@@ -60,20 +75,28 @@ public abstract class AsyncServlet {
 					else if (serverInfo.startsWith("Google App Engine/")) {
 						server = "GAE";
 					}
+					
+					if (server != null) {
+						reason.append("server specific support for ").append(serverInfo);
+					}
+					else {
+						server = probeCapabilities(context, reason);
+					}
 				}
 				
 				if (server != null) {
-					context.log("Creating " + server + " async servlet handler for server " + serverInfo);
+					context.log("Creating " + server + " async servlet handler for server " + serverInfo + ": " + reason);
 					try {
 						async = (AsyncServlet) Class.forName("net.zschech.gwt.comet.server.impl." + server + "AsyncServlet").newInstance();
 					}
 					catch (Throwable e) {
 						context.log("Error creating " + server + " async servlet handler for server " + serverInfo + ". Falling back to default blocking async servlet handler.", e);
+						reason.append(", error creating ").append(server).append(" async servlet handler: ").append(e);
 						async = new BlockingAsyncServlet();
 					}
 				}
 				else {
-					context.log("Creating blocking async servlet handler for server " + serverInfo);
+					context.log("Creating blocking async servlet handler for server " + serverInfo + ": " + reason);
 					async = new BlockingAsyncServlet();
 				}
 				
@@ -84,10 +107,13 @@ public abstract class AsyncServlet {
 					catch (Throwable e) {
 						context.log("Error initiating " + server + " async servlet handler for server " + serverInfo + ". Falling back to default blocking async servlet handler.", e);
 						context.log("Creating blocking async servlet handler for server " + serverInfo);
+						reason.append(", error initiating ").append(server).append(" async servlet handler: ").append(e);
 						async = new BlockingAsyncServlet();
 						async.init(context);
 					}
+					async.selection = async.getClass().getSimpleName() + " (" + reason + ")";
 					context.setAttribute(SERVLET_CONTEXT_KEY, async);
+					context.setAttribute(SELECTION_CONTEXT_KEY, async.selection);
 				}
 				catch (ServletException e) {
 					throw new Error("Error setting up async servlet");
@@ -97,6 +123,52 @@ public abstract class AsyncServlet {
 		}
 	}
 	
+	/**
+	 * Selects an AsyncServlet implementation from the capabilities of the servlet container when it is not
+	 * specifically supported. Servlet 3.1 non-blocking IO is preferred over Servlet 3.0 async which is preferred over
+	 * blocking a thread per connection. The Servlet version of the web application rather than of the container
+	 * decides as async-supported can only be set in a Servlet 3.0 or later deployment descriptor.
+	 * 
+	 * @param context
+	 * @param reason
+	 *            the reasons for the selection are appended to this
+	 * @return the selected implementation or null for the blocking implementation
+	 */
+	private static String probeCapabilities(ServletContext context, StringBuilder reason) {
+		int majorVersion = context.getMajorVersion();
+		int minorVersion = context.getMinorVersion();
+		reason.append("Servlet API ").append(majorVersion).append('.').append(minorVersion);
+		if (majorVersion >= 3) {
+			// the effective version methods were added in Servlet 3.0
+			majorVersion = context.getEffectiveMajorVersion();
+			minorVersion = context.getEffectiveMinorVersion();
+			reason.append(" for web application version ").append(majorVersion).append('.').append(minorVersion);
+		}
+		if (majorVersion > 3 || (majorVersion == 3 && minorVersion >= 1)) {
+			try {
+				Class<?> writeListener = Class.forName("javax.servlet.WriteListener");
+				Class.forName("javax.servlet.ServletOutputStream").getMethod("setWriteListener", writeListener);
+				reason.append(" with WriteListener non-blocking IO");
+				return "Servlet31";
+			}
+			catch (Throwable e) {
+				reason.append(" without WriteListener non-blocking IO");
+			}
+		}
+		if (majorVersion >= 3) {
+			try {
+				Class.forName("javax.servlet.AsyncContext");
+				reason.append(" with AsyncContext");
+				return "Servlet30";
+			}
+			catch (Throwable e) {
+				reason.append(" without AsyncContext");
+			}
+		}
+		reason.append(" without async support");
+		return null;
+	}
+	
 	public static void destroy(ServletContext context) {
 		synchronized (context) {
 			AsyncServlet async = (AsyncServlet) context.getAttribute(SERVLET_CONTEXT_KEY);
@@ -106,8 +178,19 @@ public abstract class AsyncServlet {
 		}
 	}
 	
+	/**
+	 * The interval between session keep alive sweeps. Sessions due to be kept alive before the next sweep are accessed
+	 * in the current sweep.
+	 */
+	private static final long KEEP_ALIVE_SWEEP_INTERVAL = 5000;
+	
 	private ServletContext context;
 	
+	private String selection;
+	
+	private final Set<CometServletResponseImpl> keepAliveResponses = Collections.newSetFromMap(new ConcurrentHashMap<CometServletResponseImpl, Boolean>());
+	private ScheduledExecutorService keepAliveSweeper;
+	
 	/**
 	 * Override for web-server specific initialisation  
 	 * @throws ServletException  
@@ -120,6 +203,28 @@ public abstract class AsyncServlet {
 	 * Override for web-server specific shutdown  
 	 */
 	protected void shutdown() {
+		synchronized (keepAliveResponses) {
+			if (keepAliveSweeper != null) {
+				keepAliveSweeper.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * @return a description of why this AsyncServlet implementation was selected
+	 */
+	public String getSelection() {
+		return selection;
+	}
+	
+	/**
+	 * Override for web-server specific handling of requests that can not be suspended by this AsyncServlet.
+	 * 
+	 * @param request
+	 * @return the AsyncServlet handling the Comet response to the request
+	 */
+	public AsyncServlet forRequest(HttpServletRequest request) {
+		return this;
 	}
 	
 	/**
@@ -175,23 +280,93 @@ public abstract class AsyncServlet {
 	}
 	
 	/**
-	 * web-server specific implementation of scheduling a heartbeat
+	 * web-server specific implementation of scheduling a heartbeat. When the timeout expires
+	 * {@link CometServletResponseImpl#heartbeatExpired()} must be called.
 	 * @param response
 	 * @param session
+	 * @param delay
 	 * @return null if no scheduling is required
 	 */
-	public ScheduledFuture<?> scheduleHeartbeat(CometServletResponseImpl response, CometSessionImpl session) {
+	public HashedWheelTimer.Timeout scheduleHeartbeat(CometServletResponseImpl response, CometSessionImpl session, long delay) {
 		return null;
 	}
 	
 	/**
-	 * web-server specific implementation of scheduling a session keep alive
+	 * Adds a response to the session keep alive sweep. A single periodic task walks all the responses and updates the
+	 * access time of the sessions that are close to expiring, see {@link #access(HttpSession)}, rather than scheduling
+	 * a task or waking up a thread for each session.
 	 * @param response
-	 * @param session
-	 * @return null if no scheduling is required
 	 */
-	public ScheduledFuture<?> scheduleSessionKeepAlive(CometServletResponseImpl response, CometSessionImpl session) {
-		return null;
+	public void scheduleSessionKeepAlive(CometServletResponseImpl response) {
+		synchronized (keepAliveResponses) {
+			if (keepAliveSweeper == null) {
+				keepAliveSweeper = Executors.newSingleThreadScheduledExecutor(createThreadFactory("gwt-comet keep alive "));
+				keepAliveSweeper.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sweepSessionKeepAlives();
+						}
+						catch (RuntimeException e) {
+							log("Error keeping sessions alive", e);
+						}
+					}
+				}, KEEP_ALIVE_SWEEP_INTERVAL, KEEP_ALIVE_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+		keepAliveResponses.add(response);
+	}
+	
+	/**
+	 * Removes a response from the session keep alive sweep.
+	 * @param response
+	 */
+	public void cancelSessionKeepAlive(CometServletResponseImpl response) {
+		keepAliveResponses.remove(response);
+	}
+	
+	private void sweepSessionKeepAlives() {
+		for (CometServletResponseImpl response : keepAliveResponses) {
+			CometSessionImpl session = response.getSessionImpl();
+			if (session == null) {
+				keepAliveResponses.remove(response);
+				continue;
+			}
+			
+			try {
+				if (session.getKeepAliveScheduleTime() <= KEEP_ALIVE_SWEEP_INTERVAL) {
+					if (access(session.getHttpSession())) {
+						session.setLastAccessedTime();
+					}
+					else {
+						response.tryTerminate();
+					}
+				}
+			}
+			catch (IllegalStateException e) {
+				// the session has been invalidated
+				response.tryTerminate();
+			}
+		}
+	}
+	
+	/**
+	 * @param prefix
+	 * @return a thread factory naming threads after this servlet context
+	 */
+	protected ThreadFactory createThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				String name = context.getServletContextName();
+				if (name == null || name.isEmpty()) {
+					name = context.getContextPath();
+				}
+				Thread thread = new Thread(runnable, prefix + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
 	}
 	
 	protected Object get(String path, Object object) {
@@ -73,18 +73,6 @@ public class BlockingAsyncServlet extends AsyncServlet {
 						response.setProcessing(true);
 						
 						while (session.isValid() && !response.isTerminated()) {
-							long sessionKeepAliveTime = session.getKeepAliveScheduleTime();
-							if (sessionKeepAliveTime <= 0) {
-								if (access(session.getHttpSession())) {
-									session.setLastAccessedTime();
-									sessionKeepAliveTime = session.getKeepAliveScheduleTime();
-								}
-								else {
-									response.tryTerminate();
-									break;
-								}
-							}
-							
 							if (session.isEmpty()) {
 								long heartBeatTime = response.getHeartbeatScheduleTime();
 								if (heartBeatTime <= 0) {
@@ -99,7 +87,7 @@ public class BlockingAsyncServlet extends AsyncServlet {
 								}
 								
 								response.setProcessing(false);
-								response.wait(Math.min(sessionKeepAliveTime, heartBeatTime));
+								response.wait(heartBeatTime);
 								response.setProcessing(true);
 							}
 							else {
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.zschech.gwt.comet.server.CometServlet;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+import net.zschech.gwt.comet.server.deflate.Deflater;
+
+/**
+ * A message enqueued to many Comet sessions by {@link CometServlet#broadcast(Serializable, Iterable)}.
+ * 
+ * The encoded form of the message is shared between all the Comet responses with the same transport message format and
+ * serialization policy or client oracle so the message is serialized once for each of these rather than once for each
+ * Comet session. If broadcast compression is enabled the message's complete frame is also compressed once for all the
+ * Comet responses with the same frame format, see {@link CometServlet#setCompressBroadcastsOnce(boolean)}.
+ * 
+ * @author Richard Zschech
+ */
+public class BroadcastMessage implements Serializable {
+	
+	private static final long serialVersionUID = 4727385167281632715L;
+	
+	/**
+	 * The buffers for compressing frames if the Comet servlet does not pool buffers.
+	 */
+	private static final BufferPool FRAME_BUFFERS = new BufferPool(16);
+	
+	private final Serializable message;
+	private transient final ConcurrentMap<Object, Object> encoded;
+	
+	public BroadcastMessage(Serializable message) {
+		this.message = message;
+		this.encoded = new ConcurrentHashMap<Object, Object>(4, 0.75f, 1);
+	}
+	
+	/**
+	 * @return the message being broadcast
+	 */
+	public Serializable getMessage() {
+		return message;
+	}
+	
+	CharSequence getEncoded(CometServletResponseImpl response) throws IOException {
+		Object key = response.getEncodingKey();
+		String result = (String) encoded.get(key);
+		if (result == null) {
+			result = response.encode(message).toString();
+			String previous = (String) encoded.putIfAbsent(key, result);
+			if (previous != null) {
+				result = previous;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the message's frame compressed once for all the Comet responses with the same frame format, see
+	 *         {@link CometServletResponseImpl#writeCompressedFrame(BroadcastMessage)}
+	 */
+	CompressedFrame getCompressedFrame(CometServletResponseImpl response) throws IOException {
+		Object key = response.getFrameKey();
+		CompressedFrame result = (CompressedFrame) encoded.get(key);
+		if (result == null) {
+			BufferPool bufferPool = response.getBufferPool();
+			if (bufferPool == null) {
+				bufferPool = FRAME_BUFFERS;
+			}
+			// the frame is compressed once for many responses so it is worth compressing it hard
+			byte[] frame = response.encodeFrame(this).toString().getBytes("UTF-8");
+			result = new CompressedFrame(Deflater.compressBlocks(frame, 0, frame.length, Deflater.COMPACT, bufferPool), frame);
+			CompressedFrame previous = (CompressedFrame) encoded.putIfAbsent(key, result);
+			if (previous != null) {
+				result = previous;
+			}
+		}
+		return result;
+	}
+	
+	private Object readResolve() {
+		return new BroadcastMessage(message);
+	}
+	
+	/**
+	 * A frame compressed into deflate blocks which do not refer to any preceding data, along with the frame's
+	 * uncompressed data which the following data of each response may refer to.
+	 */
+	static class CompressedFrame {
+		
+		final byte[] blocks;
+		final byte[] data;
+		
+		CompressedFrame(byte[] blocks, byte[] data) {
+			this.blocks = blocks;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed size direct byte buffers. Buffers that are not released back to the pool are simply garbage
+ * collected.
+ * 
+ * @author Richard Zschech
+ */
+public class ByteBufferPool {
+	
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * @param bufferSize
+	 *            the capacity of the buffers
+	 * @param maxPooled
+	 *            the maximum number of buffers kept in the pool
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * @return the number of buffers in the pool
+	 */
+	public int getPooled() {
+		return pooled.get();
+	}
+	
+	/**
+	 * @return a cleared buffer from the pool or a newly allocated buffer if the pool is empty
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+	
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			pool.offer(buffer);
+		}
+		else {
+			pooled.decrementAndGet();
+		}
+	}
+}
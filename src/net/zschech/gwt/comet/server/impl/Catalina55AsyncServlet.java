@@ -23,7 +23,6 @@ public class Catalina55AsyncServlet extends BlockingAsyncServlet {
 	protected boolean access(HttpSession httpSession) {
 		try {
 			Field sessionField = getSessionField(httpSession);
-			sessionField.setAccessible(true);
 			Object catalinaSession = sessionField.get(httpSession);
 			Method accessMethod = getAccessMethod(catalinaSession);
 			accessMethod.invoke(catalinaSession, new Object[0]);
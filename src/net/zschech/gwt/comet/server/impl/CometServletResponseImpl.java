@@ -19,13 +19,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletResponse;
@@ -37,7 +39,9 @@ import javax.servlet.http.HttpSession;
 import net.zschech.gwt.comet.server.CometServlet;
 import net.zschech.gwt.comet.server.CometServletResponse;
 import net.zschech.gwt.comet.server.CometSession;
-import net.zschech.gwt.comet.server.deflate.DeflaterOutputStream;
+import net.zschech.gwt.comet.server.CompressionProvider;
+import net.zschech.gwt.comet.server.deflate.BlockWriter;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
 
 import com.google.gwt.rpc.server.ClientOracle;
 import com.google.gwt.rpc.server.RPC;
@@ -47,6 +51,16 @@ import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
 
 public abstract class CometServletResponseImpl implements CometServletResponse {
 	
+	private static final int DRAIN_CHUNK_SIZE = 64;
+	private static final int DRAIN_BYTES = 64 * 1024;
+	
+	/**
+	 * Heartbeats are sent up to this fraction of the heartbeat period early so connections established at the same
+	 * time, e.g. after a server restart, do not send their heartbeats at the same time.
+	 */
+	private static final double HEARTBEAT_JITTER = 0.1;
+	private static final Random random = new Random();
+	
 	private final HttpServletRequest request;
 	private final HttpServletResponse response;
 	private CometSessionImpl session;
@@ -56,18 +70,26 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 	private final CometServlet servlet;
 	private final AsyncServlet async;
 	private final int heartbeat;
+	private final int heartbeatJitter;
+	private final int drainTime;
+	private final List<Serializable> drainMessages = new ArrayList<Serializable>(DRAIN_CHUNK_SIZE);
 	
 	private OutputStream asyncOutputStream;
-	protected Writer writer;
+	protected UTF8Writer writer;
+	private BlockWriter blockWriter;
+	private CompressionProvider compressionProvider;
+	private OutputStream compressedOutputStream;
 	
-	private boolean terminated;
+	private volatile boolean terminated;
 	private boolean suspended;
 	private AtomicBoolean processing = new AtomicBoolean();
 	
-	private Object suspendInfo;
+	private volatile Object suspendInfo;
 	private volatile long lastWriteTime;
-	private ScheduledFuture<?> heartbeatFuture;
-	private ScheduledFuture<?> sessionKeepAliveFuture;
+	private HashedWheelTimer.Timeout heartbeatTimeout;
+	
+	private Object encodingKey;
+	private Object frameKey;
 	
 	protected CometServletResponseImpl(HttpServletRequest request, HttpServletResponse response, SerializationPolicy serializationPolicy, ClientOracle clientOracle, CometServlet servlet, AsyncServlet async, int heartbeat) {
 		this.request = request;
@@ -77,6 +99,8 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		this.servlet = servlet;
 		this.async = async;
 		this.heartbeat = heartbeat;
+		this.heartbeatJitter = random.nextInt((int) (heartbeat * HEARTBEAT_JITTER) + 1);
+		this.drainTime = servlet.getDrainTime();
 	}
 	
 	@Override
@@ -85,7 +109,7 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 	}
 	
 	@Override
-	public synchronized boolean isTerminated() {
+	public boolean isTerminated() {
 		return terminated;
 	}
 	
@@ -155,20 +179,38 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		return session != null;
 	}
 	
-	synchronized void scheduleSessionKeepAlive() {
-		if (sessionKeepAliveFuture != null) {
-			sessionKeepAliveFuture.cancel(false);
-		}
-		sessionKeepAliveFuture = async.scheduleSessionKeepAlive(this, session);
+	void scheduleSessionKeepAlive() {
+		async.scheduleSessionKeepAlive(this);
 	}
 	
+	/**
+	 * Records the time of the last write. The heartbeat timeout is only scheduled if there is none pending, otherwise
+	 * it is lazily re-armed when it expires, see {@link #heartbeatExpired()}.
+	 */
 	void scheduleHeartbeat() {
 		assert Thread.holdsLock(this);
 		lastWriteTime = System.currentTimeMillis();
-		if (heartbeatFuture != null) {
-			heartbeatFuture.cancel(false);
+		if (heartbeatTimeout == null) {
+			heartbeatTimeout = async.scheduleHeartbeat(this, session, getHeartbeatScheduleTime());
+		}
+	}
+	
+	/**
+	 * Called when the heartbeat timeout expires. Sends a heartbeat if nothing has been written for the heartbeat period
+	 * otherwise re-arms the timeout for the remaining time.
+	 */
+	synchronized void heartbeatExpired() {
+		heartbeatTimeout = null;
+		if (terminated) {
+			return;
+		}
+		long heartbeatTime = getHeartbeatScheduleTime();
+		if (heartbeatTime > 0) {
+			heartbeatTimeout = async.scheduleHeartbeat(this, session, heartbeatTime);
+		}
+		else {
+			tryHeartbeat();
 		}
-		heartbeatFuture = async.scheduleHeartbeat(this, session);
 	}
 	
 	@Override
@@ -186,7 +228,7 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 			setupHeaders(response);
 			
 			OutputStream outputStream = response.getOutputStream();
-			writer = new OutputStreamWriter(outputStream, "UTF-8");
+			writer = new UTF8Writer(outputStream, servlet.getBufferPool());
 			
 			doSendError(statusCode, message);
 		}
@@ -204,13 +246,24 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		OutputStream outputStream = response.getOutputStream();
 		asyncOutputStream = outputStream = async.getOutputStream(outputStream);
 		
-		String acceptEncoding = request.getHeader("Accept-Encoding");
-		if (acceptEncoding != null && acceptEncoding.contains("deflate")) {
-			response.setHeader("Content-Encoding", "deflate");
-			outputStream = new DeflaterOutputStream(outputStream);
+		boolean compressed = false;
+		CompressionProvider compressionProvider = servlet.getCompressionProvider();
+		if (compressionProvider != null) {
+			String acceptEncoding = request.getHeader("Accept-Encoding");
+			String contentEncoding = compressionProvider.getContentEncoding();
+			if (acceptEncoding != null && acceptEncoding.contains(contentEncoding)) {
+				response.setHeader("Content-Encoding", contentEncoding);
+				outputStream = compressionProvider.getOutputStream(outputStream, servlet.getBufferPool());
+				this.compressionProvider = compressionProvider;
+				compressedOutputStream = outputStream;
+				compressed = true;
+				if (servlet.isCompressBroadcastsOnce() && outputStream instanceof BlockWriter) {
+					blockWriter = (BlockWriter) outputStream;
+				}
+			}
 		}
 		
-		writer = new OutputStreamWriter(getOutputStream(outputStream), "UTF-8");
+		writer = new UTF8Writer(getOutputStream(outputStream), servlet.getBufferPool());
 		
 		scheduleHeartbeat();
 		getSession(false);
@@ -229,6 +282,11 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		}
 		
 		doInitiate(heartbeat);
+		
+		String compressionDictionary = servlet.getCompressionDictionary();
+		if (compressed && compressionDictionary != null) {
+			doPrime(compressionDictionary);
+		}
 	}
 	
 	protected void setupHeaders(HttpServletResponse response) {
@@ -262,6 +320,10 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 				
 				if (!(async instanceof BlockingAsyncServlet)) {
 					suspendInfo = async.suspend(this, s, request);
+					if (s != null && !s.isEmpty()) {
+						// messages enqueued while suspending could not be scheduled without the suspend info
+						async.enqueued(s);
+					}
 				}
 			}
 			
@@ -278,10 +340,14 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		}
 	}
 	
-	synchronized Object getSuspendInfo() {
+	Object getSuspendInfo() {
 		return suspendInfo;
 	}
 	
+	AsyncServlet getAsync() {
+		return async;
+	}
+	
 	@Override
 	public synchronized void terminate() throws IOException {
 		if (!terminated) {
@@ -337,6 +403,56 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		}
 	}
 	
+	/**
+	 * Writes queued messages until the queue is empty or the drain time or byte budget is used up. The messages are
+	 * written in chunks reusing this response's scratch list and the writer is flushed and the heartbeat rescheduled
+	 * once per drain rather than once per chunk.
+	 * 
+	 * @param queue
+	 * @param flush
+	 * @throws IOException
+	 */
+	synchronized void writeQueue(Queue<? extends Serializable> queue, boolean flush) throws IOException {
+		if (terminated) {
+			throw new IOException("CometServletResponse terminated");
+		}
+		try {
+			List<Serializable> messages = drainMessages;
+			long deadline = System.currentTimeMillis() + drainTime;
+			int byteLimit = writer.getCount() + DRAIN_BYTES;
+			boolean written = false;
+			try {
+				do {
+					Serializable message;
+					while (messages.size() < DRAIN_CHUNK_SIZE && (message = queue.poll()) != null) {
+						messages.add(message);
+					}
+					if (messages.isEmpty()) {
+						break;
+					}
+					doWrite(messages);
+					messages.clear();
+					written = true;
+				}
+				while (System.currentTimeMillis() < deadline && writer.getCount() < byteLimit);
+			}
+			finally {
+				messages.clear();
+			}
+			
+			if (written) {
+				if (flush) {
+					flush();
+				}
+				scheduleHeartbeat();
+			}
+		}
+		catch (IOException e) {
+			setTerminated(false);
+			throw e;
+		}
+	}
+	
 	@Override
 	public synchronized void heartbeat() throws IOException {
 		if (!terminated) {
@@ -370,9 +486,9 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		assert Thread.holdsLock(this);
 		
 		terminated = true;
-		if (heartbeatFuture != null) {
-			heartbeatFuture.cancel(false);
-			heartbeatFuture = null;
+		if (heartbeatTimeout != null) {
+			heartbeatTimeout.cancel();
+			heartbeatTimeout = null;
 		}
 		
 		if (serverInitiated) {
@@ -383,12 +499,14 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 				servlet.log("Error closing connection", e);
 			}
 		}
+		else if (compressedOutputStream != null) {
+			// the writer is not closed so release the compression resources, such as native zlib memory, now
+			compressionProvider.release(compressedOutputStream);
+		}
 		
 		if (session != null) {
 			session.clearResponse(this);
-			if (sessionKeepAliveFuture != null) {
-				sessionKeepAliveFuture.cancel(false);
-			}
+			async.cancelSessionKeepAlive(this);
 		}
 		
 		if (suspended) {
@@ -399,7 +517,7 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 	}
 	
 	long getHeartbeatScheduleTime() throws IllegalStateException {
-		return heartbeat - (System.currentTimeMillis() - lastWriteTime);
+		return heartbeat - heartbeatJitter - (System.currentTimeMillis() - lastWriteTime);
 	}
 	
 	protected abstract void doInitiate(int heartbeat) throws IOException;
@@ -408,16 +526,132 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 	
 	protected abstract void doSuspend() throws IOException;
 	
+	/**
+	 * Writes the compression dictionary in a frame the client ignores so the compressed messages that follow can refer
+	 * back to it. By default responses are not primed.
+	 * 
+	 * @param dictionary
+	 * @throws IOException
+	 */
+	protected void doPrime(CharSequence dictionary) throws IOException {
+	}
+	
 	protected abstract void doWrite(List<? extends Serializable> messages) throws IOException;
 	
 	protected abstract void doHeartbeat() throws IOException;
 	
 	protected abstract void doTerminate() throws IOException;
 	
+	/**
+	 * @return an object identifying the transport specific message format produced by {@link #encode(Serializable)}.
+	 *         Responses with the same message format and serialization policy or client oracle share the encoded form
+	 *         of broadcast messages.
+	 */
+	protected abstract Object getMessageFormat();
+	
+	/**
+	 * Serializes and escapes a message for this transport.
+	 * 
+	 * @param message
+	 * @return the encoded message
+	 * @throws IOException
+	 */
+	protected abstract CharSequence encode(Serializable message) throws IOException;
+	
+	/**
+	 * Encodes the complete frame of a broadcast message written on its own. The frame is compressed once for all the
+	 * responses with the same frame format, see {@link #writeCompressedFrame(BroadcastMessage)}.
+	 * 
+	 * @param message
+	 * @return the framed message
+	 * @throws IOException
+	 */
+	protected abstract CharSequence encodeFrame(BroadcastMessage message) throws IOException;
+	
+	/**
+	 * @param message
+	 * @return true if the message's frame is written with {@link #writeCompressedFrame(BroadcastMessage)}
+	 */
+	protected boolean isFrameCompressed(Serializable message) {
+		return blockWriter != null && message instanceof BroadcastMessage;
+	}
+	
+	/**
+	 * Splices the broadcast message's frame compressed once for all the responses with the same frame format into this
+	 * response's compressed stream.
+	 * 
+	 * @param message
+	 * @throws IOException
+	 */
+	protected void writeCompressedFrame(BroadcastMessage message) throws IOException {
+		BroadcastMessage.CompressedFrame frame = message.getCompressedFrame(this);
+		writer.writeBlocks(blockWriter, frame.blocks, frame.data);
+	}
+	
+	/**
+	 * Encodes a message using the shared encoded form if the message is a {@link BroadcastMessage} or if the Comet
+	 * servlet caches encoded messages.
+	 * 
+	 * @param message
+	 * @return the encoded message
+	 * @throws IOException
+	 */
+	protected CharSequence getEncoded(Serializable message) throws IOException {
+		if (message instanceof BroadcastMessage) {
+			return ((BroadcastMessage) message).getEncoded(this);
+		}
+		EncodingCache encodingCache = servlet.getEncodingCache();
+		if (encodingCache != null) {
+			return encodingCache.getEncoded(message, this);
+		}
+		return encode(message);
+	}
+	
+	/**
+	 * @param message
+	 * @return true if the message's encoded form is shared with other Comet responses so it must be encoded with
+	 *         {@link #getEncoded(Serializable)}, false if it can be serialized straight into the writer with
+	 *         {@link #writeSerialized(Serializable)}
+	 */
+	protected boolean isEncodingShared(Serializable message) {
+		if (message instanceof BroadcastMessage) {
+			return true;
+		}
+		EncodingCache encodingCache = servlet.getEncodingCache();
+		return encodingCache != null && encodingCache.isShared(message, this);
+	}
+	
+	Object getEncodingKey() {
+		if (encodingKey == null) {
+			encodingKey = Arrays.asList(getMessageFormat(), clientOracle == null ? serializationPolicy : clientOracle);
+		}
+		return encodingKey;
+	}
+	
+	Object getFrameKey() {
+		if (frameKey == null) {
+			frameKey = Arrays.asList(getClass(), getEncodingKey());
+		}
+		return frameKey;
+	}
+	
+	BufferPool getBufferPool() {
+		return servlet.getBufferPool();
+	}
+	
+	private ServerSerializationStreamWriter createStreamWriter() {
+		// the writers are created with the servlet's policy which is the one used without a client oracle
+		Map<Class<?>, SerialTypeWriter> serialTypeWriters = servlet.getSerialTypeWriters();
+		if (serialTypeWriters == null) {
+			return new ServerSerializationStreamWriter(serializationPolicy);
+		}
+		return new SerialTypesStreamWriter(serializationPolicy, serialTypeWriters);
+	}
+	
 	protected String serialize(Serializable message) throws NotSerializableException, UnsupportedEncodingException {
 		try {
 			if (clientOracle == null) {
-				ServerSerializationStreamWriter streamWriter = new ServerSerializationStreamWriter(serializationPolicy);
+				ServerSerializationStreamWriter streamWriter = createStreamWriter();
 				streamWriter.prepareToWrite();
 				streamWriter.writeObject(message);
 				return streamWriter.toString();
@@ -433,6 +667,33 @@ public abstract class CometServletResponseImpl implements CometServletResponse {
 		}
 	}
 	
+	/**
+	 * Serializes a message straight into the writer, escaped with the writer's escapes if any. Unlike
+	 * {@link #serialize(Serializable)} the deRPC payload is written through the writer's buffer without being decoded
+	 * into a string and encoded again. If the serialization fails part of the message may have been written so callers
+	 * mark the writer beforehand and reset it on failure, see {@link UTF8Writer#mark()}.
+	 * 
+	 * @param message
+	 * @throws NotSerializableException
+	 * @throws IOException
+	 */
+	protected void writeSerialized(Serializable message) throws IOException {
+		try {
+			if (clientOracle == null) {
+				ServerSerializationStreamWriter streamWriter = createStreamWriter();
+				streamWriter.prepareToWrite();
+				streamWriter.writeObject(message);
+				writer.append(streamWriter.toString());
+			}
+			else {
+				RPC.streamResponseForSuccess(clientOracle, writer.getByteStream(), message);
+			}
+		}
+		catch (SerializationException e) {
+			throw new NotSerializableException("Unable to serialize object, message: " + e.getMessage());
+		}
+	}
+	
 	boolean setProcessing(boolean processing) {
 		return this.processing.compareAndSet(!processing, processing);
 	}
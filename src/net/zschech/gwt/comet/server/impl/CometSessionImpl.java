@@ -17,15 +17,18 @@ package net.zschech.gwt.comet.server.impl;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpSession;
 
 import net.zschech.gwt.comet.server.CometSession;
+import net.zschech.gwt.comet.server.CometTopic;
+import net.zschech.gwt.comet.server.QueueOverflowListener;
+import net.zschech.gwt.comet.server.QueueOverflowPolicy;
 
 public class CometSessionImpl implements CometSession {
 	
@@ -44,6 +47,10 @@ public class CometSessionImpl implements CometSession {
 	private final AsyncServlet async;
 	private final AtomicBoolean valid;
 	private final AtomicReference<CometServletResponseImpl> response;
+	private final Set<CometTopic> topics;
+	
+	private volatile QueueOverflowPolicy overflowPolicy = QueueOverflowPolicy.DROP_OLDEST;
+	private volatile QueueOverflowListener overflowListener;
 	
 	private final AtomicBoolean refreshing;
 	private volatile long refreshSentTime;
@@ -58,6 +65,7 @@ public class CometSessionImpl implements CometSession {
 		this.valid = new AtomicBoolean(true);
 		this.response = new AtomicReference<CometServletResponseImpl>();
 		this.refreshing = new AtomicBoolean(false);
+		this.topics = new CopyOnWriteArraySet<CometTopic>();
 	}
 	
 	private void ensureValid() {
@@ -75,10 +83,89 @@ public class CometSessionImpl implements CometSession {
 	@Override
 	public void enqueue(Serializable message) {
 		ensureValid();
-		queue.add(message);
+		if (!queue.offer(message) && !overflow(message)) {
+			return;
+		}
 		async.enqueued(this);
 	}
 	
+	/**
+	 * Applies the overflow policy when the queue is full.
+	 * 
+	 * @param message
+	 * @return false if the message was not enqueued and the session does not need to be notified
+	 */
+	private boolean overflow(Serializable message) {
+		switch (overflowPolicy) {
+		case DROP_NEWEST:
+			dropped(message);
+			return false;
+		case INVALIDATE:
+			dropped(message);
+			invalidate();
+			return false;
+		case COALESCE:
+			if (isQueued(message)) {
+				dropped(message);
+				return false;
+			}
+			break;
+		}
+		
+		do {
+			Serializable oldest = queue.poll();
+			if (oldest != null) {
+				dropped(oldest);
+			}
+		}
+		while (!queue.offer(message));
+		return true;
+	}
+	
+	/**
+	 * @param message
+	 * @return if an equal message is queued, comparing the messages wrapped by broadcast messages as each broadcast or
+	 *         topic publish wraps its message in a new {@link BroadcastMessage}
+	 */
+	private boolean isQueued(Serializable message) {
+		Serializable unwrapped = unwrap(message);
+		for (Serializable queued : queue) {
+			if (unwrapped.equals(unwrap(queued))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static Serializable unwrap(Serializable message) {
+		return message instanceof BroadcastMessage ? ((BroadcastMessage) message).getMessage() : message;
+	}
+	
+	private void dropped(Serializable message) {
+		QueueOverflowListener listener = overflowListener;
+		if (listener != null) {
+			listener.messageDropped(this, message);
+		}
+	}
+	
+	@Override
+	public void setQueueOverflowPolicy(QueueOverflowPolicy policy) {
+		if (policy == null) {
+			throw new NullPointerException("policy");
+		}
+		this.overflowPolicy = policy;
+	}
+	
+	@Override
+	public QueueOverflowPolicy getQueueOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	@Override
+	public void setQueueOverflowListener(QueueOverflowListener listener) {
+		this.overflowListener = listener;
+	}
+	
 	@Override
 	public void enqueued() {
 		ensureValid();
@@ -94,6 +181,9 @@ public class CometSessionImpl implements CometSession {
 	public void invalidate() {
 		if (valid.compareAndSet(true, false)) {
 			async.invalidate(this);
+			for (CometTopic topic : topics) {
+				topic.unsubscribe(this);
+			}
 			try {
 				httpSession.removeAttribute(HTTP_SESSION_KEY);
 			}
@@ -113,6 +203,20 @@ public class CometSessionImpl implements CometSession {
 		return valid.get();
 	}
 	
+	/**
+	 * Records a topic subscription so it can be removed when this session is invalidated.
+	 * 
+	 * @param topic
+	 * @return false if the session is already subscribed or has been invalidated
+	 */
+	public boolean addTopic(CometTopic topic) {
+		return valid.get() && topics.add(topic);
+	}
+	
+	public void removeTopic(CometTopic topic) {
+		topics.remove(topic);
+	}
+	
 	boolean isEmpty() {
 		return isValid() && queue.isEmpty();
 	}
@@ -160,27 +264,13 @@ public class CometSessionImpl implements CometSession {
 	}
 	
 	/**
-	 * @param flushIfEmpty
-	 *            flush if the queue is empty
+	 * @param flush
+	 *            flush the messages written
 	 * @throws IOException
 	 */
-	void writeQueue(CometServletResponseImpl response, boolean flushIfEmpty) throws IOException {
+	void writeQueue(CometServletResponseImpl response, boolean flush) throws IOException {
 		assert Thread.holdsLock(response);
-		
-		int batchSize = 10;
-		List<Serializable> messages = new ArrayList<Serializable>(batchSize);
-		
-		Serializable message = queue.remove();
-		messages.add(message);
-		for (int i = 0; i < batchSize - 1; i++) {
-			message = queue.poll();
-			if (message == null) {
-				break;
-			}
-			messages.add(message);
-		}
-		
-		response.write(messages, flushIfEmpty && queue.isEmpty());
+		response.writeQueue(queue, flush);
 	}
 	
 	long getKeepAliveScheduleTime() throws IllegalStateException {
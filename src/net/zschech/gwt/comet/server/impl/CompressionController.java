@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.zschech.gwt.comet.server.deflate.BlockWriter;
+import net.zschech.gwt.comet.server.deflate.Deflater;
+
+/**
+ * Adapts the compression level of each Comet connection to the CPU load and to the data the connection sends. The
+ * level is chosen after each flush for the data written until the next flush:
+ * <ul>
+ * <li>when the CPU is saturated only Huffman coding is used, or no compression at all if the connection's data does
+ * not compress well or its flushes are small</li>
+ * <li>when the connection's data does not compress at all it is sent in stored blocks</li>
+ * <li>otherwise the level goes from SPEED under moderate load to COMPACT when the CPU is mostly idle, small flushes
+ * using at most SPEED as there is little for the lazy matching of the higher levels to gain on them</li>
+ * </ul>
+ * 
+ * Connections sending stored blocks try compressing again every few flushes in case their data has changed.
+ * 
+ * The CPU load is the system load average per processor, sampled at most once a second. If the JVM does not report a
+ * load average the CPU is considered to be moderately loaded.
+ * 
+ * The number of flushes at each level and the bytes in and out are kept as metrics.
+ * 
+ * @author Richard Zschech
+ */
+public class CompressionController {
+	
+	private static final long LOAD_SAMPLE_INTERVAL = 1000;
+	
+	/**
+	 * The smoothing factor of each connection's compression ratio.
+	 */
+	private static final double RATIO_WEIGHT = 0.25;
+	
+	/**
+	 * The length of the empty stored block ending each sync flush, excluded from the compression ratio as it does not
+	 * depend on the level.
+	 */
+	private static final int SYNC_FLUSH_LENGTH = 5;
+	
+	/**
+	 * The number of flushes sent in stored blocks after which compression is tried again.
+	 */
+	private static final int STORED_PROBE_INTERVAL = 32;
+	
+	private final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+	
+	private double highLoad = 0.9;
+	private double lowLoad = 0.3;
+	private double incompressibleRatio = 0.95;
+	private int smallFlushSize = 64;
+	
+	private volatile double load = -1;
+	private volatile long loadSampleTime;
+	
+	private final AtomicLongArray levelFlushes = new AtomicLongArray(Deflater.STORED + 1);
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	
+	/**
+	 * @param highLoad
+	 *            the load average per processor above which the CPU is considered saturated
+	 */
+	public void setHighLoad(double highLoad) {
+		this.highLoad = highLoad;
+	}
+	
+	/**
+	 * @param lowLoad
+	 *            the load average per processor below which the CPU is considered mostly idle
+	 */
+	public void setLowLoad(double lowLoad) {
+		this.lowLoad = lowLoad;
+	}
+	
+	/**
+	 * @param incompressibleRatio
+	 *            the compressed to uncompressed size ratio above which a connection's data is considered incompressible
+	 */
+	public void setIncompressibleRatio(double incompressibleRatio) {
+		this.incompressibleRatio = incompressibleRatio;
+	}
+	
+	/**
+	 * @param smallFlushSize
+	 *            the uncompressed size in bytes below which a connection's flushes are considered small
+	 */
+	public void setSmallFlushSize(int smallFlushSize) {
+		this.smallFlushSize = smallFlushSize;
+	}
+	
+	/**
+	 * @param outputStream
+	 * @param deflater
+	 *            the deflater whose level is adapted
+	 * @return a stream compressing with the deflater
+	 */
+	public OutputStream getOutputStream(OutputStream outputStream, Deflater deflater) {
+		return new AdaptiveDeflaterOutputStream(outputStream, deflater);
+	}
+	
+	/**
+	 * Chooses the compression level for the data written until the next flush.
+	 * 
+	 * @param ratio
+	 *            the connection's smoothed compressed to uncompressed size ratio, excluding the sync flush markers
+	 * @param flushSize
+	 *            the connection's smoothed uncompressed size of each flush
+	 * @return the compression level
+	 */
+	protected int selectLevel(double ratio, double flushSize) {
+		double load = getLoad();
+		boolean small = flushSize < smallFlushSize;
+		if (load >= highLoad) {
+			return ratio >= incompressibleRatio || small ? Deflater.STORED : Deflater.HUFF;
+		}
+		if (ratio >= incompressibleRatio) {
+			return Deflater.STORED;
+		}
+		if (small) {
+			return Deflater.SPEED;
+		}
+		if (load < 0) {
+			return Deflater.MEDIUM;
+		}
+		if (load <= lowLoad) {
+			return Deflater.COMPACT;
+		}
+		if (load <= (lowLoad + highLoad) / 2) {
+			return Deflater.MEDIUM;
+		}
+		return Deflater.SPEED;
+	}
+	
+	/**
+	 * @return the system load average per processor or a negative value if it is not available
+	 */
+	protected double getLoad() {
+		long now = System.currentTimeMillis();
+		if (now - loadSampleTime > LOAD_SAMPLE_INTERVAL) {
+			loadSampleTime = now;
+			double loadAverage = operatingSystem.getSystemLoadAverage();
+			load = loadAverage < 0 ? -1 : loadAverage / operatingSystem.getAvailableProcessors();
+		}
+		return load;
+	}
+	
+	/**
+	 * @param level
+	 *            a {@link Deflater} compression level
+	 * @return the number of flushes compressed at the level
+	 */
+	public long getFlushes(int level) {
+		return levelFlushes.get(level);
+	}
+	
+	/**
+	 * @return the number of uncompressed bytes written
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	/**
+	 * @return the number of compressed bytes written
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "CompressionController[huff=" + getFlushes(Deflater.HUFF) + ", speed=" + getFlushes(Deflater.SPEED) + ", medium=" + getFlushes(Deflater.MEDIUM) + ", compact=" + getFlushes(Deflater.COMPACT) + ", stored=" + getFlushes(Deflater.STORED) + ", bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut() + ", load=" + load + "]";
+	}
+	
+	/**
+	 * A deflating stream which asks the controller for the compression level after each sync flush.
+	 */
+	private class AdaptiveDeflaterOutputStream extends OutputStream implements BlockWriter {
+		
+		private final Deflater deflater;
+		private final CountingOutputStream out;
+		private long in;
+		private double ratio;
+		private double flushSize;
+		private int storedFlushes;
+		
+		private AdaptiveDeflaterOutputStream(OutputStream outputStream, Deflater deflater) {
+			this.out = new CountingOutputStream(outputStream);
+			this.deflater = deflater;
+			deflater.setOut(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			deflater.process(b, off, len);
+			in += len;
+		}
+		
+		@Override
+		public void writeBlocks(byte[] b, int off, int len, byte[] data, int dataOff, int dataLen) throws IOException {
+			// the spliced blocks were compressed elsewhere so they do not count towards this connection's ratio
+			deflater.writeBlocks(b, off, len, data, dataOff, dataLen);
+			out.count -= len;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			deflater.flushSync(true);
+			out.flush();
+			
+			if (in > 0) {
+				levelFlushes.incrementAndGet(deflater.getLevel());
+				bytesIn.addAndGet(in);
+				bytesOut.addAndGet(out.count);
+				
+				flushSize = flushSize == 0 ? in : flushSize + RATIO_WEIGHT * (in - flushSize);
+				if (deflater.getLevel() != Deflater.STORED) {
+					double flushRatio = (double) Math.max(out.count - SYNC_FLUSH_LENGTH, 0) / in;
+					ratio = ratio == 0 ? flushRatio : ratio + RATIO_WEIGHT * (flushRatio - ratio);
+				}
+				else if (++storedFlushes == STORED_PROBE_INTERVAL) {
+					// forget the ratio so the next flush is compressed and measured again
+					storedFlushes = 0;
+					ratio = 0;
+				}
+				in = 0;
+				out.count = 0;
+				
+				deflater.setLevel(selectLevel(ratio, flushSize));
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			deflater.terminate();
+			out.close();
+		}
+	}
+	
+	private static class CountingOutputStream extends FilterOutputStream {
+		
+		private long count;
+		
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
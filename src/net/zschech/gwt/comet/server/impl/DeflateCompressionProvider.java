@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.zschech.gwt.comet.server.CompressionProvider;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+import net.zschech.gwt.comet.server.deflate.Deflater;
+import net.zschech.gwt.comet.server.deflate.DeflaterOutputStream;
+
+/**
+ * Compresses Comet responses with the bundled pure Java {@link Deflater}. This works on all JVMs and supports releasing
+ * idle compression buffers to a {@link BufferPool}.
+ * 
+ * The window and hash chains are held by each Comet connection for its lifetime so their size bounds the memory used
+ * by idle connections. By default each connection starts with a 1KB window which grows up to the standard 32KB window
+ * only for connections sending enough compressible data to benefit from it, see {@link #setWindowBits(int, int)}.
+ * 
+ * @author Richard Zschech
+ */
+public class DeflateCompressionProvider implements CompressionProvider {
+	
+	private final int level;
+	private final CompressionController controller;
+	
+	private int initialWindowBits = 10;
+	private int maxWindowBits = 15;
+	private int hashBits;
+	
+	public DeflateCompressionProvider() {
+		this(Deflater.MEDIUM);
+	}
+	
+	/**
+	 * @param level
+	 *            the compression level, one of the {@link Deflater} levels
+	 */
+	public DeflateCompressionProvider(int level) {
+		this.level = level;
+		this.controller = null;
+	}
+	
+	/**
+	 * @param controller
+	 *            the controller adapting the compression level of each Comet response
+	 */
+	public DeflateCompressionProvider(CompressionController controller) {
+		this.level = Deflater.MEDIUM;
+		this.controller = controller;
+	}
+	
+	/**
+	 * @return the controller adapting the compression level or null if a fixed level is used
+	 */
+	public CompressionController getController() {
+		return controller;
+	}
+	
+	/**
+	 * Sets the window size of each Comet connection. If the maximum is greater than the initial window size then the
+	 * window grows for connections which benefit from it, see
+	 * {@link Deflater#Deflater(int, int, int, int, BufferPool)}.
+	 * 
+	 * The LZ77 history, including a compression dictionary the response was primed with, is kept when the window grows
+	 * but messages cannot refer back to data which has already slid out of the initial window, so the initial window
+	 * should be larger than the dictionary.
+	 * 
+	 * @param initialWindowBits
+	 *            the initial window bit size (9 to 15)
+	 * @param maxWindowBits
+	 *            the maximum window bit size (initialWindowBits to 15)
+	 */
+	public void setWindowBits(int initialWindowBits, int maxWindowBits) {
+		if (initialWindowBits < 9 || initialWindowBits > 15) {
+			throw new IllegalArgumentException("Invalid initial window bits: " + initialWindowBits);
+		}
+		if (maxWindowBits < initialWindowBits || maxWindowBits > 15) {
+			throw new IllegalArgumentException("Invalid maximum window bits: " + maxWindowBits);
+		}
+		this.initialWindowBits = initialWindowBits;
+		this.maxWindowBits = maxWindowBits;
+	}
+	
+	public int getInitialWindowBits() {
+		return initialWindowBits;
+	}
+	
+	public int getMaxWindowBits() {
+		return maxWindowBits;
+	}
+	
+	/**
+	 * Sets the hash table size of each Comet connection. A smaller hash table saves memory at the cost of slower
+	 * matching.
+	 * 
+	 * @param hashBits
+	 *            the hash table bit size (8 to 16) or 0 for a hash table as large as the window
+	 */
+	public void setHashBits(int hashBits) {
+		if (hashBits != 0 && (hashBits < 8 || hashBits > 16)) {
+			throw new IllegalArgumentException("Invalid hash bits: " + hashBits);
+		}
+		this.hashBits = hashBits;
+	}
+	
+	public int getHashBits() {
+		return hashBits;
+	}
+	
+	@Override
+	public String getContentEncoding() {
+		return "deflate";
+	}
+	
+	@Override
+	public OutputStream getOutputStream(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+		Deflater deflater = new Deflater(level, initialWindowBits, maxWindowBits, hashBits, bufferPool);
+		if (controller != null) {
+			return controller.getOutputStream(outputStream, deflater);
+		}
+		return new DeflaterOutputStream(outputStream, deflater);
+	}
+	
+	@Override
+	public void release(OutputStream compressedOutputStream) {
+		// the bundled deflater only holds heap memory and releases its pooled buffers after each flush
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of encoded messages keyed on the identity of the message and the Comet response's encoding key, its
+ * transport message format and serialization policy or client oracle. When the same message instance is enqueued to
+ * many Comet sessions it is serialized once for each encoding key rather than once for each Comet session, like a
+ * {@link BroadcastMessage} but without changing the code enqueuing the message.
+ * 
+ * A message is only cached once it has been seen a second time for the same encoding key. Until then it is serialized
+ * straight into the Comet response's writer and only its identity is remembered, apart from the encoded messages, so
+ * messages enqueued to a single Comet session neither evict the cached messages nor lose the streaming serialization.
+ * 
+ * Entries are evicted oldest first when the cache is full or when they are older than the maximum age. Since the cache
+ * is keyed on identity a message must not be modified and enqueued again within the maximum age.
+ * 
+ * @author Richard Zschech
+ */
+public class EncodingCache {
+	
+	private final int maxSize;
+	private final long maxAge;
+	private final Entries seen = new Entries();
+	private final Entries encoded = new Entries();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param maxSize
+	 *            the maximum number of encoded messages cached, and of messages seen once remembered
+	 * @param maxAge
+	 *            the maximum time in milliseconds an encoded message is cached for
+	 */
+	public EncodingCache(int maxSize, long maxAge) {
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+	}
+	
+	/**
+	 * @param message
+	 * @param response
+	 * @return true if the message has already been seen for the response's encoding key so it should be encoded with
+	 *         {@link #getEncoded(Serializable, CometServletResponseImpl)}, false if this is the first time in which case
+	 *         it is remembered
+	 */
+	boolean isShared(Serializable message, CometServletResponseImpl response) {
+		Key key = new Key(message, response.getEncodingKey());
+		long now = System.currentTimeMillis();
+		if (encoded.get(key, now) != null || seen.get(key, now) != null) {
+			return true;
+		}
+		seen.put(new Entry(key, null, now), now);
+		return false;
+	}
+	
+	CharSequence getEncoded(Serializable message, CometServletResponseImpl response) throws IOException {
+		Key key = new Key(message, response.getEncodingKey());
+		long now = System.currentTimeMillis();
+		Entry entry = encoded.get(key, now);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.encoded;
+		}
+		if (seen.get(key, now) == null) {
+			seen.put(new Entry(key, null, now), now);
+			return response.encode(message);
+		}
+		
+		misses.incrementAndGet();
+		String result = response.encode(message).toString();
+		encoded.put(new Entry(key, result, now), now);
+		return result;
+	}
+	
+	/**
+	 * @return the number of encoded messages cached
+	 */
+	public int getSize() {
+		return encoded.size.get();
+	}
+	
+	/**
+	 * @return the number of messages seen once remembered
+	 */
+	public int getSeen() {
+		return seen.size.get();
+	}
+	
+	/**
+	 * @return the number of messages encoded from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return the number of messages encoded and added to the cache
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "EncodingCache[size=" + getSize() + ", seen=" + getSeen() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+	}
+	
+	/**
+	 * Entries evicted oldest first when there are more than the maximum size or when they are older than the maximum
+	 * age.
+	 */
+	private class Entries {
+		
+		private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+		private final Queue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+		private final AtomicInteger size = new AtomicInteger();
+		
+		private Entry get(Key key, long now) {
+			Entry entry = entries.get(key);
+			return entry != null && now - entry.time <= maxAge ? entry : null;
+		}
+		
+		private void put(Entry entry, long now) {
+			Entry previous = entries.put(entry.key, entry);
+			if (previous != null) {
+				// replacing an expired entry, it is removed from the eviction order when it is reached
+				size.decrementAndGet();
+			}
+			order.offer(entry);
+			size.incrementAndGet();
+			evict(now);
+		}
+		
+		private void evict(long now) {
+			Entry eldest;
+			while ((eldest = order.peek()) != null && (size.get() > maxSize || now - eldest.time > maxAge)) {
+				if (order.remove(eldest) && entries.remove(eldest.key, eldest)) {
+					size.decrementAndGet();
+				}
+			}
+		}
+	}
+	
+	private static class Key {
+		
+		private final Serializable message;
+		private final Object encodingKey;
+		private final int hash;
+		
+		private Key(Serializable message, Object encodingKey) {
+			this.message = message;
+			this.encodingKey = encodingKey;
+			this.hash = System.identityHashCode(message) * 31 + encodingKey.hashCode();
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return message == other.message && encodingKey.equals(other.encodingKey);
+		}
+	}
+	
+	private static class Entry {
+		
+		private final Key key;
+		private final String encoded;
+		private final long time;
+		
+		private Entry(Key key, String encoded, long time) {
+			this.key = key;
+			this.encoded = encoded;
+			this.time = time;
+		}
+	}
+}
@@ -16,7 +16,6 @@
 package net.zschech.gwt.comet.server.impl;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.List;
 
@@ -55,20 +54,17 @@ public class HTTPRequestCometServletResponse extends RawDataCometServletResponse
 	}
 	
 	@Override
-	protected OutputStream getOutputStream(OutputStream outputStream) {
-		return setupCountOutputStream(outputStream);
+	protected boolean isLengthManaged() {
+		return true;
 	}
 	
 	@Override
 	protected void doWrite(List<? extends Serializable> messages) throws IOException {
 		clientMemory *= 2;
+		int count = writer.getCount();
 		super.doWrite(messages);
-	}
-	
-	@Override
-	protected void appendMessage(CharSequence string) throws IOException {
-		clientMemory += string.length() + 1;
-		super.appendMessage(string);
+		// the messages may be serialized straight into the writer so they are measured by the bytes written
+		clientMemory += writer.getCount() - count;
 	}
 	
 	@Override
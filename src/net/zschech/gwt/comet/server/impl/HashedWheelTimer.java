@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel for scheduling large numbers of approximate timeouts such as heartbeats and session keep
+ * alives. Scheduling and cancelling a timeout are O(1) and do not contend with other connections, unlike a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor} whose delay queue is a heap shared by all the timeouts.
+ * 
+ * Timeouts are executed by the single timer thread with a precision of one tick so their tasks must be short.
+ * 
+ * @author Richard Zschech
+ */
+public class HashedWheelTimer {
+	
+	private static final int ST_INIT = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+	
+	private final long tickDuration;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread workerThread;
+	private final long startTime;
+	
+	private volatile boolean running = true;
+	private long tick;
+	
+	/**
+	 * @param threadFactory
+	 * @param tickDuration
+	 *            the precision of the timeouts
+	 * @param unit
+	 * @param ticksPerWheel
+	 *            the number of buckets in the wheel, rounded up to a power of two
+	 */
+	public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration: " + tickDuration);
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+			throw new IllegalArgumentException("ticksPerWheel: " + ticksPerWheel);
+		}
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.tickDuration = unit.toNanos(tickDuration);
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.workerThread = threadFactory.newThread(new Worker());
+		this.workerThread.setDaemon(true);
+		this.workerThread.start();
+	}
+	
+	/**
+	 * Schedules a task to be executed by the timer thread after the delay.
+	 * 
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return the timeout which can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (!running) {
+			throw new IllegalStateException("HashedWheelTimer stopped");
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+		pendingTimeouts.offer(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * Stops the timer thread. Timeouts that have not expired are discarded.
+	 */
+	public void stop() {
+		running = false;
+		workerThread.interrupt();
+	}
+	
+	private class Worker implements Runnable {
+		
+		@Override
+		public void run() {
+			while (running) {
+				long deadline = tickDuration * (tick + 1);
+				long sleepTime = deadline - (System.nanoTime() - startTime);
+				if (sleepTime > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepTime);
+					}
+					catch (InterruptedException e) {
+						// woken up to stop
+					}
+					continue;
+				}
+				
+				removeCancelledTimeouts();
+				transferPendingTimeouts();
+				expireTimeouts();
+				tick++;
+			}
+		}
+		
+		private void removeCancelledTimeouts() {
+			Timeout timeout;
+			while ((timeout = cancelledTimeouts.poll()) != null) {
+				unlink(timeout);
+			}
+		}
+		
+		private void transferPendingTimeouts() {
+			Timeout timeout;
+			while ((timeout = pendingTimeouts.poll()) != null) {
+				if (timeout.state.get() == ST_CANCELLED) {
+					continue;
+				}
+				long expiryTick = Math.max(timeout.deadline / tickDuration, tick);
+				timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+				timeout.bucket = (int) (expiryTick & mask);
+				
+				Timeout head = wheel[timeout.bucket];
+				timeout.next = head;
+				if (head != null) {
+					head.prev = timeout;
+				}
+				wheel[timeout.bucket] = timeout;
+			}
+		}
+		
+		private void expireTimeouts() {
+			Timeout timeout = wheel[(int) (tick & mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					unlink(timeout);
+					if (timeout.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+						try {
+							timeout.task.run();
+						}
+						catch (Throwable e) {
+							workerThread.getUncaughtExceptionHandler().uncaughtException(workerThread, e);
+						}
+					}
+				}
+				else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+		
+		private void unlink(Timeout timeout) {
+			if (timeout.bucket < 0) {
+				// not in the wheel yet or already removed
+				return;
+			}
+			if (timeout.prev == null) {
+				wheel[timeout.bucket] = timeout.next;
+			}
+			else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.bucket = -1;
+			timeout.next = null;
+			timeout.prev = null;
+		}
+	}
+	
+	/**
+	 * A task scheduled with a {@link HashedWheelTimer}.
+	 */
+	public class Timeout {
+		
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+		
+		// only accessed by the timer thread
+		private long remainingRounds;
+		private int bucket = -1;
+		private Timeout next;
+		private Timeout prev;
+		
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Cancels the task if it has not been executed.
+		 * 
+		 * @return false if the task has already been executed or cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			cancelledTimeouts.offer(this);
+			return true;
+		}
+		
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+		
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+	}
+}
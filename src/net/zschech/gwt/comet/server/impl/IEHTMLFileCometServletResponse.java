@@ -16,7 +16,6 @@
 package net.zschech.gwt.comet.server.impl;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.List;
 
@@ -53,6 +52,14 @@ public class IEHTMLFileCometServletResponse extends ManagedStreamCometServletRes
 		PADDING_STRING = new String(padding);
 	}
 	
+	// the escapes of escapeObject applied while serializing straight into the writer
+	private static final String[] OBJECT_ESCAPES = new String[128];
+	static {
+		OBJECT_ESCAPES['\''] = "\\\'";
+		OBJECT_ESCAPES['\\'] = "\\\\";
+		OBJECT_ESCAPES['/'] = "\\/";
+	}
+	
 	private int clientMemory;
 	
 	public IEHTMLFileCometServletResponse(HttpServletRequest request, HttpServletResponse response, SerializationPolicy serializationPolicy, ClientOracle clientOracle, CometServlet servlet, AsyncServlet async, int heartbeat) {
@@ -67,8 +74,8 @@ public class IEHTMLFileCometServletResponse extends ManagedStreamCometServletRes
 	}
 	
 	@Override
-	protected OutputStream getOutputStream(OutputStream outputStream) {
-		return setupCountOutputStream(outputStream);
+	protected boolean isLengthManaged() {
+		return true;
 	}
 	
 	@Override
@@ -104,6 +111,12 @@ public class IEHTMLFileCometServletResponse extends ManagedStreamCometServletRes
 		}
 	}
 	
+	@Override
+	protected void doPrime(CharSequence dictionary) throws IOException {
+		// an HTML comment ending with the start of a message script as that is repeated the most
+		writer.append("<!--").append(escapeComment(dictionary)).append("<script>m(-->");
+	}
+	
 	@Override
 	protected void doSendError(int statusCode, String message) throws IOException {
 		writer.append("<html><script>parent.e(").append(Integer.toString(statusCode));
@@ -116,26 +129,76 @@ public class IEHTMLFileCometServletResponse extends ManagedStreamCometServletRes
 	@Override
 	protected void doWrite(List<? extends Serializable> messages) throws IOException {
 		clientMemory *= 2;
-		writer.append("<script>m(");
-		boolean first = true;
+		boolean open = false;
 		for (Serializable message : messages) {
-			CharSequence string;
-			if (message instanceof CharSequence) {
-				string = "]" + escapeString((CharSequence) message);
-			}
-			else {
-				string = escapeObject(serialize(message));
-			}
-			if (first) {
-				first = false;
+			int count = writer.getCount();
+			if (isFrameCompressed(message)) {
+				if (open) {
+					writer.append(")</script>");
+					open = false;
+				}
+				writeCompressedFrame((BroadcastMessage) message);
 			}
 			else {
-				writer.append(',');
+				// the partial message is discarded if the serialization fails
+				writer.mark();
+				boolean written = false;
+				try {
+					writer.append(open ? "," : "<script>m(");
+					writer.append('\'');
+					if (message instanceof CharSequence || isEncodingShared(message)) {
+						writer.append(getEncoded(message));
+					}
+					else {
+						writer.setEscapes(OBJECT_ESCAPES);
+						try {
+							writeSerialized(message);
+						}
+						finally {
+							writer.setEscapes(null);
+						}
+					}
+					writer.append('\'');
+					written = true;
+				}
+				finally {
+					if (written) {
+						writer.clearMark();
+						open = true;
+					}
+					else {
+						writer.reset();
+						if (open) {
+							// close the script of the messages already written
+							writer.append(")</script>");
+						}
+					}
+				}
 			}
-			writer.append('\'').append(string).append('\'');
-			clientMemory += string.length() + 1;
+			clientMemory += writer.getCount() - count;
+		}
+		if (open) {
+			writer.append(")</script>");
+		}
+	}
+	
+	@Override
+	protected CharSequence encodeFrame(BroadcastMessage message) throws IOException {
+		CharSequence string = getEncoded(message);
+		return new StringBuilder(string.length() + 22).append("<script>m('").append(string).append("')</script>");
+	}
+	
+	@Override
+	protected Object getMessageFormat() {
+		return IEHTMLFileCometServletResponse.class;
+	}
+	
+	@Override
+	protected CharSequence encode(Serializable message) throws IOException {
+		if (message instanceof CharSequence) {
+			return "]" + escapeString((CharSequence) message);
 		}
-		writer.append(")</script>");
+		return escapeObject(serialize(message));
 	}
 	
 	@Override
@@ -221,6 +284,35 @@ public class IEHTMLFileCometServletResponse extends ManagedStreamCometServletRes
 		return str;
 	}
 	
+	/**
+	 * @param string
+	 * @return the string with a space inserted between each pair of dashes and before a leading '>' or "->" so it can
+	 *         not close the HTML comment it is written in, or the string itself if it does not need escaping
+	 */
+	private static CharSequence escapeComment(CharSequence string) {
+		int length = string.length();
+		boolean escape = length > 0 && (string.charAt(0) == '>' || (string.charAt(0) == '-' && length > 1 && string.charAt(1) == '>'));
+		for (int i = 1; i < length && !escape; i++) {
+			escape = string.charAt(i) == '-' && string.charAt(i - 1) == '-';
+		}
+		if (!escape) {
+			return string;
+		}
+		
+		StringBuilder str = new StringBuilder(length + 16);
+		if (string.charAt(0) == '>' || string.charAt(0) == '-') {
+			str.append(' ');
+		}
+		for (int i = 0; i < length; i++) {
+			char ch = string.charAt(i);
+			if (ch == '-' && i > 0 && string.charAt(i - 1) == '-') {
+				str.append(' ');
+			}
+			str.append(ch);
+		}
+		return str;
+	}
+	
 	private CharSequence escapeObject(CharSequence string) {
 		int length = string.length();
 		int i = 0;
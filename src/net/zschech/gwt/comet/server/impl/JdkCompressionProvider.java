@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.zschech.gwt.comet.server.CompressionProvider;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+
+/**
+ * Compresses Comet responses with the JDK's native zlib {@link Deflater}, producing either the "deflate" or "gzip"
+ * Content-Encoding.
+ * 
+ * Flushing a compressed Comet response requires a zlib sync flush which the JDK only supports from Java 7, so the
+ * sync flushing stream constructors are looked up by reflection and {@link #isAvailable()} returns false on older
+ * JVMs.
+ * 
+ * @author Richard Zschech
+ */
+public class JdkCompressionProvider implements CompressionProvider {
+	
+	private static final int BUFFER_SIZE = 4096;
+	
+	private static final Constructor<DeflaterOutputStream> DEFLATER_CONSTRUCTOR;
+	private static final Constructor<GZIPOutputStream> GZIP_CONSTRUCTOR;
+	static {
+		Constructor<DeflaterOutputStream> deflaterConstructor;
+		Constructor<GZIPOutputStream> gzipConstructor;
+		try {
+			deflaterConstructor = DeflaterOutputStream.class.getConstructor(OutputStream.class, Deflater.class, int.class, boolean.class);
+			gzipConstructor = GZIPOutputStream.class.getConstructor(OutputStream.class, int.class, boolean.class);
+		}
+		catch (NoSuchMethodException e) {
+			// before Java 7
+			deflaterConstructor = null;
+			gzipConstructor = null;
+		}
+		DEFLATER_CONSTRUCTOR = deflaterConstructor;
+		GZIP_CONSTRUCTOR = gzipConstructor;
+	}
+	
+	/**
+	 * @return true if the JVM supports sync flushing compressed streams
+	 */
+	public static boolean isAvailable() {
+		return DEFLATER_CONSTRUCTOR != null;
+	}
+	
+	private final boolean gzip;
+	private final int level;
+	
+	/**
+	 * @param gzip
+	 *            true for the "gzip" Content-Encoding, false for "deflate"
+	 * @param level
+	 *            the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public JdkCompressionProvider(boolean gzip, int level) {
+		if (!isAvailable()) {
+			throw new IllegalStateException("Sync flushing compressed streams require Java 7");
+		}
+		this.gzip = gzip;
+		this.level = level;
+	}
+	
+	@Override
+	public String getContentEncoding() {
+		return gzip ? "gzip" : "deflate";
+	}
+	
+	@Override
+	public OutputStream getOutputStream(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+		TransportOutputStream transport = new TransportOutputStream(outputStream);
+		try {
+			if (gzip) {
+				GZIPOutputStream gzipOutputStream = GZIP_CONSTRUCTOR.newInstance(transport, BUFFER_SIZE, true);
+				return new JdkOutputStream(gzipOutputStream, transport, null);
+			}
+			else {
+				// raw deflate data without the zlib wrapper, like the bundled deflater, as that is what browsers expect
+				Deflater deflater = new Deflater(level, true);
+				try {
+					return new JdkOutputStream(DEFLATER_CONSTRUCTOR.newInstance(transport, deflater, BUFFER_SIZE, true), transport, deflater);
+				}
+				catch (InvocationTargetException e) {
+					deflater.end();
+					throw e;
+				}
+			}
+		}
+		catch (InstantiationException e) {
+			throw new IOException("Error creating compressed stream: " + e);
+		}
+		catch (IllegalAccessException e) {
+			throw new IOException("Error creating compressed stream: " + e);
+		}
+		catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error creating compressed stream: " + e.getCause());
+		}
+	}
+	
+	@Override
+	public void release(OutputStream compressedOutputStream) {
+		if (compressedOutputStream instanceof JdkOutputStream) {
+			((JdkOutputStream) compressedOutputStream).release();
+		}
+	}
+	
+	/**
+	 * Passes writes straight through to the compressed stream and releases the native deflater's memory when closed or
+	 * released rather than waiting for it to be finalized.
+	 */
+	private static class JdkOutputStream extends FilterOutputStream {
+		
+		private final TransportOutputStream transport;
+		private final Deflater deflater;
+		
+		public JdkOutputStream(OutputStream out, TransportOutputStream transport, Deflater deflater) {
+			super(out);
+			this.transport = transport;
+			this.deflater = deflater;
+		}
+		
+		/**
+		 * Closes the compressed stream, which ends the gzip stream's own deflater, without writing its trailer to the
+		 * Comet response.
+		 */
+		void release() {
+			transport.detached = true;
+			try {
+				close();
+			}
+			catch (IOException e) {
+				// nothing is written once detached
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The Comet response's output stream which can be detached so closing the compressed stream does not write to it.
+	 */
+	private static class TransportOutputStream extends FilterOutputStream {
+		
+		private boolean detached;
+		
+		public TransportOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (!detached) {
+				out.write(b);
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!detached) {
+				out.write(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (!detached) {
+				out.flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!detached) {
+				out.close();
+			}
+		}
+	}
+}
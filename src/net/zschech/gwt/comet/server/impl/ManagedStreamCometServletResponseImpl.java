@@ -16,9 +16,9 @@
 package net.zschech.gwt.comet.server.impl;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Queue;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,8 +33,6 @@ public abstract class ManagedStreamCometServletResponseImpl extends CometServlet
 	private final int paddingRequired;
 	private final long length;
 	
-	private CountOutputStream countOutputStream;
-	
 	public ManagedStreamCometServletResponseImpl(HttpServletRequest request, HttpServletResponse response, SerializationPolicy serializationPolicy, ClientOracle clientOracle, CometServlet servlet, AsyncServlet async, int heartbeat) {
 		super(request, response, serializationPolicy, clientOracle, servlet, async, heartbeat);
 		
@@ -55,14 +53,17 @@ public abstract class ManagedStreamCometServletResponseImpl extends CometServlet
 		}
 	}
 	
-	protected OutputStream setupCountOutputStream(OutputStream outputStream) {
-		countOutputStream = new CountOutputStream(outputStream);
-		return countOutputStream;
+	/**
+	 * @return true if the number of bytes written is used to pad the response and to refresh or terminate it once it
+	 *         is too long
+	 */
+	protected boolean isLengthManaged() {
+		return false;
 	}
 	
 	@Override
 	protected void doSuspend() throws IOException {
-		if (paddingRequired != 0 && countOutputStream != null) {
+		if (paddingRequired != 0 && isLengthManaged()) {
 			
 			int written = getCount();
 			CometSessionImpl session = getSessionImpl();
@@ -82,11 +83,8 @@ public abstract class ManagedStreamCometServletResponseImpl extends CometServlet
 		}
 	}
 	
-	private int getCount() throws IOException {
-		countOutputStream.setIgnoreFlush(true);
-		writer.flush();
-		countOutputStream.setIgnoreFlush(false);
-		return countOutputStream.getCount();
+	private int getCount() {
+		return writer.getCount();
 	}
 	
 	@Override
@@ -95,6 +93,12 @@ public abstract class ManagedStreamCometServletResponseImpl extends CometServlet
 		checkLength();
 	}
 	
+	@Override
+	synchronized void writeQueue(Queue<? extends Serializable> queue, boolean flush) throws IOException {
+		super.writeQueue(queue, flush);
+		checkLength();
+	}
+	
 	@Override
 	public synchronized void heartbeat() throws IOException {
 		super.heartbeat();
@@ -102,7 +106,7 @@ public abstract class ManagedStreamCometServletResponseImpl extends CometServlet
 	}
 	
 	private void checkLength() throws IOException {
-		if (countOutputStream != null) {
+		if (isLengthManaged()) {
 			int count = getCount();
 			CometSessionImpl session = getSessionImpl();
 			if (session == null) {
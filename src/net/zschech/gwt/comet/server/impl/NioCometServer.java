@@ -0,0 +1,693 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.zschech.gwt.comet.client.impl.CometTransport;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+/**
+ * A minimal standalone Comet endpoint which serves the raw data wire formats of the HTTP request and event source
+ * transports from a single NIO event loop thread instead of from a servlet container. Existing clients connect to it
+ * unchanged.
+ * 
+ * The event loop accepts connections, reads their request heads and then writes the response head, the connect frame
+ * and the frames enqueued by the {@link Connection}'s write, heartbeat and terminate methods through pooled direct
+ * buffers without blocking. Any thread may enqueue frames. Heartbeats are scheduled with a {@link HashedWheelTimer} and
+ * client disconnections are detected by the event loop reading the end of the stream.
+ * 
+ * Unlike the {@link net.zschech.gwt.comet.server.CometServlet} there are no HTTP sessions so no Comet sessions, the
+ * responses are not compressed, messages are serialized with a single {@link SerializationPolicy} so deRPC clients are
+ * refused, and the IE htmlfile transport is not served.
+ * 
+ * @author Richard Zschech
+ */
+public class NioCometServer {
+	
+	/**
+	 * Notified of connections on the event loop thread so it must not block.
+	 */
+	public interface Handler {
+		
+		/**
+		 * Called once the connect frame has been enqueued.
+		 * 
+		 * @param connection
+		 */
+		public void connected(Connection connection);
+		
+		/**
+		 * Called once the connection has been closed, after it was terminated or the client disconnected.
+		 * 
+		 * @param connection
+		 */
+		public void disconnected(Connection connection);
+	}
+	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+	private static final int MAX_REQUEST_HEAD = 8 * 1024;
+	private static final long TICK_DURATION = 100;
+	private static final int TICKS_PER_WHEEL = 512;
+	
+	// the HTTP request transport's XMLHttpRequest keeps the whole response so it is refreshed after this many characters
+	private static final int MAX_CLIENT_MEMORY = 1024 * 1024;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	
+	private final InetSocketAddress address;
+	private final SerializationPolicy serializationPolicy;
+	private final Handler handler;
+	private final int heartbeat;
+	private final ByteBufferPool bufferPool = new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+	private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+	
+	// only used by the event loop thread to discard data read after the request head
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(1024);
+	
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private HashedWheelTimer timer;
+	private Thread eventLoop;
+	private volatile boolean running;
+	
+	/**
+	 * @param address
+	 *            the address to listen on
+	 * @param serializationPolicy
+	 *            the policy to serialize messages which are not strings with
+	 * @param handler
+	 * @param heartbeat
+	 *            the default heartbeat interval in milliseconds, clients may request another with the heartbeat
+	 *            parameter
+	 */
+	public NioCometServer(InetSocketAddress address, SerializationPolicy serializationPolicy, Handler handler, int heartbeat) {
+		if (heartbeat <= 0) {
+			throw new IllegalArgumentException("heartbeat: " + heartbeat);
+		}
+		this.address = address;
+		this.serializationPolicy = serializationPolicy;
+		this.handler = handler;
+		this.heartbeat = heartbeat;
+	}
+	
+	public synchronized void start() throws IOException {
+		if (eventLoop != null) {
+			throw new IllegalStateException("NioCometServer already started");
+		}
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().bind(address);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		timer = new HashedWheelTimer(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "gwt-comet nio timer " + address);
+			}
+		}, TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+		
+		running = true;
+		eventLoop = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runEventLoop();
+			}
+		}, "gwt-comet nio " + address);
+		eventLoop.start();
+	}
+	
+	/**
+	 * Stops accepting connections and closes the open connections without terminating them.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (eventLoop == null) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		eventLoop.join();
+		eventLoop = null;
+		timer.stop();
+	}
+	
+	/**
+	 * @return the address the server is listening on, which has the actual port if it was started on port 0
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+	
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+	
+	protected void log(String message, Throwable throwable) {
+		System.err.println("gwt-comet nio " + address + ": " + message);
+		if (throwable != null) {
+			throwable.printStackTrace();
+		}
+	}
+	
+	private void runEventLoop() {
+		try {
+			while (running) {
+				selector.select();
+				
+				Connection connection;
+				while ((connection = ready.poll()) != null) {
+					connection.flush();
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			log("Error in the event loop", e);
+		}
+		finally {
+			List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+			for (SelectionKey key : keys) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			}
+			catch (IOException e) {
+				log("Error closing the server socket", e);
+			}
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+	
+	/**
+	 * A client's Comet connection. The write, heartbeat and terminate methods enqueue frames for the event loop to write
+	 * so they do not block on the network.
+	 */
+	public class Connection {
+		
+		private final SocketChannel channel;
+		private final Queue<CharSequence> frames = new ConcurrentLinkedQueue<CharSequence>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final CharsetEncoder encoder = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		// only used by the event loop thread
+		private SelectionKey key;
+		private ByteBuffer requestHead = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+		private CharBuffer chars;
+		private ByteBuffer output;
+		private boolean connected;
+		private boolean closed;
+		
+		private String requestURI;
+		private Map<String, String> headers;
+		private RawDataFraming framing;
+		private int connectionHeartbeat;
+		private int clientMemory;
+		
+		// terminated stops writes, closing is set after the last frame has been enqueued
+		private volatile boolean terminated;
+		private volatile boolean closing;
+		private volatile long lastWrite;
+		private volatile HashedWheelTimer.Timeout heartbeatTimeout;
+		
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		/**
+		 * @return the request URI including the query string
+		 */
+		public String getRequestURI() {
+			return requestURI;
+		}
+		
+		/**
+		 * @param name
+		 * @return the value of the request header or null
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+		
+		/**
+		 * @return the heartbeat interval in milliseconds for this connection.
+		 */
+		public int getHeartbeat() {
+			return connectionHeartbeat;
+		}
+		
+		public void write(Serializable message) throws IOException {
+			write(Collections.singletonList(message));
+		}
+		
+		/**
+		 * Enqueues a frame for each message. Messages which are not strings are serialized on the calling thread so an
+		 * exception is thrown and nothing is enqueued if one can not be serialized.
+		 * 
+		 * @param messages
+		 * @throws IOException
+		 */
+		public synchronized void write(List<? extends Serializable> messages) throws IOException {
+			if (terminated) {
+				throw new IOException("Comet connection terminated");
+			}
+			StringBuilder frame = new StringBuilder();
+			for (Serializable message : messages) {
+				if (message instanceof CharSequence) {
+					framing.appendString(frame, (CharSequence) message);
+				}
+				else {
+					framing.appendMessage(frame, serialize(message));
+				}
+			}
+			enqueue(frame);
+			
+			if (framing == RawDataFraming.HTTP_REQUEST) {
+				clientMemory += frame.length();
+				if (clientMemory > MAX_CLIENT_MEMORY) {
+					// the client reconnects after a refresh
+					StringBuilder refresh = new StringBuilder();
+					framing.appendRefresh(refresh);
+					close(refresh);
+				}
+			}
+		}
+		
+		public synchronized void heartbeat() throws IOException {
+			if (terminated) {
+				throw new IOException("Comet connection terminated");
+			}
+			StringBuilder frame = new StringBuilder();
+			framing.appendHeartbeat(frame);
+			enqueue(frame);
+		}
+		
+		/**
+		 * Enqueues a terminate frame after which the event loop closes the connection.
+		 */
+		public synchronized void terminate() {
+			if (terminated) {
+				return;
+			}
+			StringBuilder frame = new StringBuilder();
+			try {
+				framing.appendTerminate(frame);
+			}
+			catch (IOException e) {
+				// StringBuilders do not throw
+				throw new IllegalStateException(e);
+			}
+			close(frame);
+		}
+		
+		/**
+		 * @return if this connection has been terminated or the client has disconnected
+		 */
+		public boolean isTerminated() {
+			return terminated;
+		}
+		
+		private String serialize(Serializable message) throws NotSerializableException {
+			try {
+				ServerSerializationStreamWriter streamWriter = new ServerSerializationStreamWriter(serializationPolicy);
+				streamWriter.prepareToWrite();
+				streamWriter.writeObject(message);
+				return streamWriter.toString();
+			}
+			catch (SerializationException e) {
+				throw new NotSerializableException("Unable to serialize object, message: " + e.getMessage());
+			}
+		}
+		
+		private void close(CharSequence lastFrame) {
+			assert Thread.holdsLock(this);
+			terminated = true;
+			enqueue(lastFrame);
+			closing = true;
+			schedule();
+		}
+		
+		private void enqueue(CharSequence frame) {
+			frames.offer(frame);
+			lastWrite = System.nanoTime();
+			schedule();
+		}
+		
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				ready.offer(this);
+				selector.wakeup();
+			}
+		}
+		
+		private void scheduleHeartbeat(long delay) {
+			if (terminated) {
+				return;
+			}
+			heartbeatTimeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					heartbeatExpired();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		
+		private void heartbeatExpired() {
+			long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWrite);
+			if (idle >= connectionHeartbeat - TICK_DURATION) {
+				try {
+					heartbeat();
+				}
+				catch (IOException e) {
+					// terminated
+					return;
+				}
+				scheduleHeartbeat(connectionHeartbeat);
+			}
+			else {
+				scheduleHeartbeat(connectionHeartbeat - idle);
+			}
+		}
+		
+		private void read() {
+			try {
+				if (requestHead == null) {
+					// once the request head has been read only the client disconnecting is of interest
+					discard.clear();
+					if (channel.read(discard) < 0) {
+						close();
+					}
+					return;
+				}
+				
+				if (channel.read(requestHead) < 0) {
+					close();
+					return;
+				}
+				int end = indexOfHeadEnd(requestHead);
+				if (end >= 0) {
+					String head = new String(requestHead.array(), 0, end, ISO_8859_1);
+					requestHead = null;
+					initiate(head);
+				}
+				else if (!requestHead.hasRemaining()) {
+					requestHead = null;
+					sendStatus(413, "Request Entity Too Large");
+				}
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+		
+		private int indexOfHeadEnd(ByteBuffer buffer) {
+			byte[] bytes = buffer.array();
+			for (int i = 3; i < buffer.position(); i++) {
+				if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+					return i - 3;
+				}
+			}
+			return -1;
+		}
+		
+		private void initiate(String head) throws IOException {
+			String[] lines = head.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+				sendStatus(400, "Bad Request");
+				return;
+			}
+			if (!"GET".equals(requestLine[0])) {
+				sendStatus(405, "Method Not Allowed");
+				return;
+			}
+			requestURI = requestLine[1];
+			headers = new HashMap<String, String>();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0) {
+					headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+				}
+			}
+			
+			String accept = getHeader("Accept");
+			String userAgent = getHeader("User-Agent");
+			String contentType;
+			if ("text/event-stream".equals(accept)) {
+				framing = RawDataFraming.EVENT_SOURCE;
+				contentType = "text/event-stream";
+			}
+			else if ("application/comet".equals(accept)) {
+				framing = RawDataFraming.HTTP_REQUEST;
+				contentType = "application/comet; charset=UTF-8";
+			}
+			else if (userAgent != null && userAgent.contains("Opera")) {
+				framing = RawDataFraming.OPERA_EVENT_SOURCE;
+				contentType = "application/x-dom-event-stream";
+			}
+			else {
+				// the IE htmlfile transport
+				sendStatus(406, "Not Acceptable");
+				return;
+			}
+			
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 200 OK\r\n");
+			response.append("Content-Type: ").append(contentType).append("\r\n");
+			response.append("Cache-Control: no-cache\r\n");
+			// the response ends when the connection is closed so it is not chunked
+			response.append("Connection: close\r\n");
+			String origin = getHeader("Origin");
+			if (origin != null && framing == RawDataFraming.HTTP_REQUEST) {
+				response.append("Access-Control-Allow-Origin: ").append(origin).append("\r\n");
+			}
+			response.append("\r\n");
+			
+			String error = null;
+			connectionHeartbeat = heartbeat;
+			String requestedHeartbeat = getParameter("heartbeat");
+			if (requestedHeartbeat != null) {
+				try {
+					connectionHeartbeat = Integer.parseInt(requestedHeartbeat);
+					if (connectionHeartbeat <= 0) {
+						error = "invalid heartbeat parameter";
+					}
+				}
+				catch (NumberFormatException e) {
+					error = "invalid heartbeat parameter";
+				}
+			}
+			if (getParameter(CometTransport.STRONG_NAME_PARAMETER) != null) {
+				error = "deRPC clients are not supported";
+			}
+			
+			synchronized (this) {
+				if (error != null) {
+					framing.appendError(response, 400, error);
+					close(response);
+					return;
+				}
+				framing.appendConnect(response, connectionHeartbeat);
+				enqueue(response);
+			}
+			connected = true;
+			scheduleHeartbeat(connectionHeartbeat);
+			try {
+				handler.connected(this);
+			}
+			catch (RuntimeException e) {
+				log("Error in the connected handler", e);
+				terminate();
+			}
+		}
+		
+		private String getParameter(String name) {
+			int query = requestURI.indexOf('?');
+			if (query < 0) {
+				return null;
+			}
+			for (String parameter : requestURI.substring(query + 1).split("&")) {
+				if (parameter.startsWith(name) && parameter.length() > name.length() && parameter.charAt(name.length()) == '=') {
+					return parameter.substring(name.length() + 1);
+				}
+			}
+			return null;
+		}
+		
+		private void sendStatus(int status, String reason) {
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+			response.append("Content-Length: 0\r\n");
+			response.append("Connection: close\r\n");
+			response.append("\r\n");
+			synchronized (this) {
+				close(response);
+			}
+		}
+		
+		/**
+		 * Writes the enqueued frames until the socket would block, closing the connection once the frames enqueued
+		 * before it was terminated have been written.
+		 */
+		private void flush() {
+			scheduled.set(false);
+			if (closed) {
+				return;
+			}
+			try {
+				while (true) {
+					if (output == null) {
+						output = bufferPool.acquire();
+					}
+					while (output.hasRemaining()) {
+						if (chars == null) {
+							CharSequence frame = frames.poll();
+							if (frame == null) {
+								break;
+							}
+							chars = CharBuffer.wrap(frame);
+						}
+						if (encoder.encode(chars, output, true).isOverflow()) {
+							break;
+						}
+						encoder.reset();
+						chars = null;
+					}
+					
+					if (output.position() == 0) {
+						bufferPool.release(output);
+						output = null;
+						if (closing && chars == null && frames.isEmpty()) {
+							close();
+						}
+						else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+							key.interestOps(SelectionKey.OP_READ);
+						}
+						return;
+					}
+					
+					output.flip();
+					channel.write(output);
+					boolean blocked = output.hasRemaining();
+					output.compact();
+					if (blocked) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+		
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			terminated = true;
+			HashedWheelTimer.Timeout timeout = heartbeatTimeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// already closed by the client
+			}
+			if (output != null) {
+				bufferPool.release(output);
+				output = null;
+			}
+			frames.clear();
+			if (connected) {
+				try {
+					handler.disconnected(this);
+				}
+				catch (RuntimeException e) {
+					log("Error in the disconnected handler", e);
+				}
+			}
+		}
+	}
+}
@@ -15,9 +15,6 @@
  */
 package net.zschech.gwt.comet.server.impl;
 
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
@@ -26,82 +23,43 @@ import javax.servlet.ServletException;
 /**
  * A non-blocking (does not block HTTP request threads) implementation for AsyncServlet.
  * 
- * Requires a scheduler for sending heart beats and keeping sessions alive.
+ * Requires a scheduler for sending heart beats. A {@link HashedWheelTimer} is used so scheduling and cancelling the
+ * heartbeat timeouts of many connections is cheap.
  * 
  * @author Richard Zschech
  */
 public abstract class NonBlockingAsyncServlet extends AsyncServlet {
 	
-	private ScheduledExecutorService scheduledExecutor;
+	private static final long TICK_DURATION = 100;
+	private static final int TICKS_PER_WHEEL = 512;
+	
+	private HashedWheelTimer timer;
 	
 	@Override
 	protected void init(ServletContext context) throws ServletException {
 		super.init(context);
 		
-		scheduledExecutor = new RemoveOnCancelScheduledThreadPoolExecutor(1, new ThreadFactory() {
-			@Override
-			public Thread newThread(Runnable runnable) {
-				String name = getServletContext().getServletContextName();
-				if (name == null || name.isEmpty()) {
-					name = getServletContext().getContextPath();
-				}
-				return new Thread(runnable, "gwt-comet " + name);
-			}
-		});
+		timer = new HashedWheelTimer(createThreadFactory("gwt-comet "), TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
 	}
 	
 	@Override
 	protected void shutdown() {
-		scheduledExecutor.shutdown();
+		timer.stop();
+		super.shutdown();
 	}
 	
-	protected ScheduledExecutorService getScheduledExecutor() {
-		return scheduledExecutor;
+	protected HashedWheelTimer getTimer() {
+		return timer;
 	}
-
+	
 	@Override
-	public ScheduledFuture<?> scheduleHeartbeat(final CometServletResponseImpl response, CometSessionImpl session) {
+	public HashedWheelTimer.Timeout scheduleHeartbeat(final CometServletResponseImpl response, CometSessionImpl session, long delay) {
 		assert Thread.holdsLock(response);
-		return scheduledExecutor.schedule(new Runnable() {
+		return timer.schedule(new Runnable() {
 			@Override
 			public void run() {
-				response.tryHeartbeat();
-			}
-		}, response.getHeartbeat(), TimeUnit.MILLISECONDS);
-	}
-	
-	@Override
-	public ScheduledFuture<?> scheduleSessionKeepAlive(final CometServletResponseImpl response, final CometSessionImpl session) {
-		assert Thread.holdsLock(response);
-		try {
-			long keepAliveTime = session.getKeepAliveScheduleTime();
-			if (keepAliveTime == Long.MAX_VALUE) {
-				return null;
-			}
-			else {
-				if (keepAliveTime <= 0) {
-					if (!access(session.getHttpSession())) {
-						response.tryTerminate();							
-						return null;
-					}
-				}
-				
-				return scheduledExecutor.schedule(new Runnable() {
-					@Override
-					public void run() {
-						if (!access(session.getHttpSession())) {
-							response.tryTerminate();							
-						}
-						session.setLastAccessedTime();
-						response.scheduleSessionKeepAlive();
-					}
-				}, keepAliveTime, TimeUnit.MILLISECONDS);
+				response.heartbeatExpired();
 			}
-		}
-		catch (IllegalStateException e) {
-			// the session has been invalidated
-			response.tryTerminate();
-			return null;
-		}
+		}, delay, TimeUnit.MILLISECONDS);
 	}
 }
@@ -15,8 +15,6 @@
  */
 package net.zschech.gwt.comet.server.impl;
 
-import java.io.IOException;
-
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -46,12 +44,7 @@ public class OperaEventSourceCometServletResponse extends RawDataCometServletRes
 	}
 
 	@Override
-	protected void appendMessageHeader() throws IOException {
-		writer.append("Event: e\ndata: ");
-	}
-	
-	@Override
-	protected void appendMessageTrailer() throws IOException {
-		writer.append("\n\n");
+	protected RawDataFraming getFraming() {
+		return RawDataFraming.OPERA_EVENT_SOURCE;
 	}
 }
@@ -50,9 +50,21 @@ public abstract class RawDataCometServletResponse extends ManagedStreamCometServ
 		super(request, response, serializationPolicy, clientOracle, servlet, async, heartbeat);
 	}
 	
+	/**
+	 * @return the framing of this response's wire format
+	 */
+	protected RawDataFraming getFraming() {
+		return RawDataFraming.HTTP_REQUEST;
+	}
+	
+	@Override
+	protected void appendMessageHeader() throws IOException {
+		writer.append(getFraming().getHeader());
+	}
+	
 	@Override
 	protected void appendMessageTrailer() throws IOException {
-		writer.append('\n');
+		writer.append(getFraming().getTrailer());
 	}
 	
 	@Override
@@ -77,110 +89,94 @@ public abstract class RawDataCometServletResponse extends ManagedStreamCometServ
 	@Override
 	protected void doInitiate(int heartbeat) throws IOException {
 		// send connection event to client
-		appendMessageHeader();
-		writer.append('!').append(String.valueOf(heartbeat));
-		appendMessageTrailer();
+		getFraming().appendConnect(writer, heartbeat);
+	}
+	
+	@Override
+	protected void doPrime(CharSequence dictionary) throws IOException {
+		getFraming().appendPadding(writer, dictionary);
 	}
 	
 	@Override
 	protected void doSendError(int statusCode, String message) throws IOException {
-		appendMessageHeader();
-		writer.append(String.valueOf(statusCode));
-		if (message != null) {
-			writer.append(' ').append(escape(message));
-		}
-		appendMessageTrailer();
+		getFraming().appendError(writer, statusCode, message);
 	}
 	
 	@Override
 	protected void doWrite(List<? extends Serializable> messages) throws IOException {
+		RawDataFraming framing = getFraming();
 		for (Serializable message : messages) {
-			CharSequence string;
-			appendMessageHeader();
-			if (message instanceof CharSequence) {
-				string = escape((CharSequence) message);
-				if (string == message) {
-					writer.append('|');
-				}
-				else {
-					writer.append(']');
-				}
+			if (isFrameCompressed(message)) {
+				writeCompressedFrame((BroadcastMessage) message);
+			}
+			else if (message instanceof CharSequence) {
+				framing.appendString(writer, (CharSequence) message);
+			}
+			else if (isEncodingShared(message)) {
+				framing.appendMessage(writer, getEncoded(message));
 			}
 			else {
-				string = serialize(message);
+				// serialized straight into the writer between the frame's header and trailer, the partial frame is
+				// discarded if the serialization fails
+				writer.mark();
+				boolean written = false;
+				try {
+					appendMessageHeader();
+					writeSerialized(message);
+					appendMessageTrailer();
+					written = true;
+				}
+				finally {
+					if (written) {
+						writer.clearMark();
+					}
+					else {
+						writer.reset();
+					}
+				}
 			}
-			appendMessage(string);
-			appendMessageTrailer();
 		}
 	}
 	
-	protected void appendMessage(CharSequence string) throws IOException {
-		writer.append(string);
+	@Override
+	protected Object getMessageFormat() {
+		return RawDataCometServletResponse.class;
+	}
+	
+	@Override
+	protected CharSequence encode(Serializable message) throws IOException {
+		if (message instanceof CharSequence) {
+			return RawDataFraming.encodeString((CharSequence) message);
+		}
+		return serialize(message);
+	}
+	
+	@Override
+	protected CharSequence encodeFrame(BroadcastMessage message) throws IOException {
+		RawDataFraming framing = getFraming();
+		CharSequence string = getEncoded(message);
+		StringBuilder frame = new StringBuilder(framing.getHeader().length() + string.length() + framing.getTrailer().length());
+		framing.appendMessage(frame, string);
+		return frame;
 	}
 	
 	@Override
 	protected void doHeartbeat() throws IOException {
-		appendMessageHeader();
-		writer.append('#');
-		appendMessageTrailer();
+		getFraming().appendHeartbeat(writer);
 	}
 	
 	@Override
 	protected void doTerminate() throws IOException {
-		appendMessageHeader();
-		writer.append('?');
-		appendMessageTrailer();
+		getFraming().appendTerminate(writer);
 	}
 	
 	@Override
 	protected void doRefresh() throws IOException {
-		appendMessageHeader();
-		writer.append('@');
-		appendMessageTrailer();
+		getFraming().appendRefresh(writer);
 	}
 	
 	@Override
 	protected boolean isOverTerminateLength(int written) {
 		return false;
 	}
-	
-	private CharSequence escape(CharSequence string) {
-		int length = string.length();
-		int i = 0;
-		loop: while (i < length) {
-			char ch = string.charAt(i);
-			switch (ch) {
-			case '\\':
-			case '\n':
-			case '\r':
-				break loop;
-			}
-			i++;
-		}
-		
-		if (i == length) {
-			return string;
-		}
-		
-		StringBuilder str = new StringBuilder(string.length() * 2);
-		str.append(string, 0, i);
-		while (i < length) {
-			char ch = string.charAt(i);
-			switch (ch) {
-			case '\\':
-				str.append("\\\\");
-				break;
-			case '\n':
-				str.append("\\n");
-				break;
-			case '\r':
-				str.append("\\r");
-				break;
-			default:
-				str.append(ch);
-			}
-			i++;
-		}
-		return str;
-	}
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+
+/**
+ * The framing of the raw data Comet wire formats used by the HTTP request and event source transports. The framing
+ * only depends on an {@link Appendable} so it can be used to produce the wire format outside of a servlet container.
+ * 
+ * Each frame is a header, a type character and its data, and a trailer. The data of string messages is escaped so
+ * frames do not contain new lines.
+ * 
+ * @author Richard Zschech
+ */
+public class RawDataFraming {
+	
+	public static final RawDataFraming HTTP_REQUEST = new RawDataFraming("", "\n");
+	public static final RawDataFraming EVENT_SOURCE = new RawDataFraming("data: ", "\n\n");
+	public static final RawDataFraming OPERA_EVENT_SOURCE = new RawDataFraming("Event: e\ndata: ", "\n\n");
+	
+	private final String header;
+	private final String trailer;
+	
+	public RawDataFraming(String header, String trailer) {
+		this.header = header;
+		this.trailer = trailer;
+	}
+	
+	public String getHeader() {
+		return header;
+	}
+	
+	public String getTrailer() {
+		return trailer;
+	}
+	
+	public void appendConnect(Appendable out, int heartbeat) throws IOException {
+		out.append(header).append('!').append(String.valueOf(heartbeat)).append(trailer);
+	}
+	
+	public void appendError(Appendable out, int statusCode, String message) throws IOException {
+		out.append(header).append(String.valueOf(statusCode));
+		if (message != null) {
+			out.append(' ').append(escape(message));
+		}
+		out.append(trailer);
+	}
+	
+	/**
+	 * @param out
+	 * @param encoded
+	 *            a message encoded by {@link #encodeString(CharSequence)} or a serialized message
+	 * @throws IOException
+	 */
+	public void appendMessage(Appendable out, CharSequence encoded) throws IOException {
+		out.append(header).append(encoded).append(trailer);
+	}
+	
+	/**
+	 * Appends a string message frame escaping the string, see {@link #encodeString(CharSequence)}.
+	 * 
+	 * @param out
+	 * @param string
+	 * @throws IOException
+	 */
+	public void appendString(Appendable out, CharSequence string) throws IOException {
+		CharSequence escaped = escape(string);
+		out.append(header).append(getStringType(string, escaped)).append(escaped).append(trailer);
+	}
+	
+	/**
+	 * Appends a padding frame which the client ignores.
+	 * 
+	 * @param out
+	 * @param padding
+	 * @throws IOException
+	 */
+	public void appendPadding(Appendable out, CharSequence padding) throws IOException {
+		out.append(header).append('*').append(escape(padding)).append(trailer);
+	}
+	
+	public void appendHeartbeat(Appendable out) throws IOException {
+		out.append(header).append('#').append(trailer);
+	}
+	
+	public void appendTerminate(Appendable out) throws IOException {
+		out.append(header).append('?').append(trailer);
+	}
+	
+	public void appendRefresh(Appendable out) throws IOException {
+		out.append(header).append('@').append(trailer);
+	}
+	
+	/**
+	 * @param string
+	 * @return the string message escaped and prefixed with its type character
+	 */
+	public static CharSequence encodeString(CharSequence string) {
+		CharSequence escaped = escape(string);
+		return new StringBuilder(escaped.length() + 1).append(getStringType(string, escaped)).append(escaped);
+	}
+	
+	/**
+	 * @param string
+	 * @param escaped
+	 *            the result of {@link #escape(CharSequence)}
+	 * @return the type character of a string message
+	 */
+	public static char getStringType(CharSequence string, CharSequence escaped) {
+		return escaped == string ? '|' : ']';
+	}
+	
+	/**
+	 * @param string
+	 * @return the string with back slashes and new lines escaped or the string itself if it does not need escaping
+	 */
+	public static CharSequence escape(CharSequence string) {
+		int length = string.length();
+		int i = 0;
+		loop: while (i < length) {
+			char ch = string.charAt(i);
+			switch (ch) {
+			case '\\':
+			case '\n':
+			case '\r':
+				break loop;
+			}
+			i++;
+		}
+		
+		if (i == length) {
+			return string;
+		}
+		
+		StringBuilder str = new StringBuilder(string.length() * 2);
+		str.append(string, 0, i);
+		while (i < length) {
+			char ch = string.charAt(i);
+			switch (ch) {
+			case '\\':
+				str.append("\\\\");
+				break;
+			case '\n':
+				str.append("\\n");
+				break;
+			case '\r':
+				str.append("\\r");
+				break;
+			default:
+				str.append(ch);
+			}
+			i++;
+		}
+		return str;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.zschech.gwt.comet.client.SerialTypes;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.impl.SerializabilityUtil;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+/**
+ * Writes the fields of one of the types declared by the {@link SerialTypes} annotations of CometSerializers. The
+ * writers are built when the Comet servlet starts and used by the {@link SerialTypesStreamWriter}.
+ * 
+ * For every message GWT's {@link ServerSerializationStreamWriter} walks the class hierarchy, looks up each class's
+ * custom field serializer and serializable fields in synchronized caches, makes each non public field accessible and
+ * then restores it, reads the field boxed and dispatches on the field's type. A writer does all of that once. It holds
+ * the fields of the whole hierarchy in the order GWT writes them, already accessible, each with its write method chosen
+ * from its type so primitive fields are read without boxing. The values are written with the stream writer's own
+ * methods, so the wire format is unchanged.
+ * 
+ * Writers are only built for the types GWT serializes field by field and whose serialization the policy allows. Enums,
+ * arrays, interfaces, abstract types, java.* and javax.* types and types with a custom field serializer anywhere in
+ * their hierarchy are left to GWT. The source level predates method handles so the fields are still read with
+ * {@link Field}.
+ * 
+ * @author Richard Zschech
+ */
+public class SerialTypeWriter {
+	
+	private static final int OBJECT = 0;
+	private static final int STRING = 1;
+	private static final int BOOLEAN = 2;
+	private static final int BYTE = 3;
+	private static final int CHAR = 4;
+	private static final int DOUBLE = 5;
+	private static final int FLOAT = 6;
+	private static final int INT = 7;
+	private static final int LONG = 8;
+	private static final int SHORT = 9;
+	
+	private final Field[] fields;
+	private final int[] kinds;
+	
+	private SerialTypeWriter(List<Field> fields) {
+		this.fields = fields.toArray(new Field[fields.size()]);
+		this.kinds = new int[this.fields.length];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = getKind(this.fields[i].getType());
+		}
+	}
+	
+	/**
+	 * Writes the instance's fields like {@link ServerSerializationStreamWriter#serializeValue(Object, Class)} does for
+	 * each field.
+	 * 
+	 * @param streamWriter
+	 * @param instance
+	 * @throws SerializationException
+	 */
+	public void write(ServerSerializationStreamWriter streamWriter, Object instance) throws SerializationException {
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				Field field = fields[i];
+				switch (kinds[i]) {
+				case STRING:
+					streamWriter.writeString((String) field.get(instance));
+					break;
+				case BOOLEAN:
+					streamWriter.writeBoolean(field.getBoolean(instance));
+					break;
+				case BYTE:
+					streamWriter.writeByte(field.getByte(instance));
+					break;
+				case CHAR:
+					streamWriter.writeChar(field.getChar(instance));
+					break;
+				case DOUBLE:
+					streamWriter.writeDouble(field.getDouble(instance));
+					break;
+				case FLOAT:
+					streamWriter.writeFloat(field.getFloat(instance));
+					break;
+				case INT:
+					streamWriter.writeInt(field.getInt(instance));
+					break;
+				case LONG:
+					streamWriter.writeLong(field.getLong(instance));
+					break;
+				case SHORT:
+					streamWriter.writeShort(field.getShort(instance));
+					break;
+				default:
+					streamWriter.writeObject(field.get(instance));
+				}
+			}
+		}
+		catch (IllegalAccessException e) {
+			throw new SerializationException(e);
+		}
+	}
+	
+	/**
+	 * @param serializationPolicy
+	 *            the policy the messages are serialized with
+	 * @param serializers
+	 *            the CometSerializer classes
+	 * @return the writers of the declared types and of the types of their fields, by type
+	 */
+	public static Map<Class<?>, SerialTypeWriter> create(SerializationPolicy serializationPolicy, Class<?>... serializers) {
+		Map<Class<?>, SerialTypeWriter> writers = new HashMap<Class<?>, SerialTypeWriter>();
+		Set<Class<?>> visited = new HashSet<Class<?>>();
+		for (Class<?> serializer : serializers) {
+			SerialTypes serialTypes = serializer.getAnnotation(SerialTypes.class);
+			if (serialTypes != null) {
+				for (Class<?> type : serialTypes.value()) {
+					create(type, serializationPolicy, writers, visited);
+				}
+			}
+		}
+		return writers;
+	}
+	
+	private static void create(Class<?> type, SerializationPolicy serializationPolicy, Map<Class<?>, SerialTypeWriter> writers, Set<Class<?>> visited) {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type.isPrimitive() || type.isEnum() || type.isInterface() || isPlatformType(type) || !visited.add(type)) {
+			return;
+		}
+		
+		// the fields in the order GWT writes them, each class's fields sorted by name followed by its superclass's
+		List<Field> fields = new ArrayList<Field>();
+		boolean fieldByField = true;
+		Class<?> clazz = type;
+		while (true) {
+			if (SerializabilityUtil.hasCustomFieldSerializer(clazz) != null) {
+				fieldByField = false;
+				break;
+			}
+			for (Field field : SerializabilityUtil.applyFieldSerializationPolicy(clazz)) {
+				fields.add(field);
+			}
+			Class<?> superclass = clazz.getSuperclass();
+			if (superclass == null || !serializationPolicy.shouldSerializeFields(superclass)) {
+				break;
+			}
+			clazz = superclass;
+		}
+		
+		for (Field field : fields) {
+			create(field.getType(), serializationPolicy, writers, visited);
+		}
+		
+		if (!fieldByField || Modifier.isAbstract(type.getModifiers())) {
+			return;
+		}
+		try {
+			// GWT validates each message, the policy's answer for the type does not change
+			serializationPolicy.validateSerialize(type);
+			for (Field field : fields) {
+				field.setAccessible(true);
+			}
+		}
+		catch (SerializationException e) {
+			// GWT reports it when a message of the type is serialized
+			return;
+		}
+		catch (RuntimeException e) {
+			// not allowed by the security manager or the module system, GWT makes the fields accessible itself
+			return;
+		}
+		writers.put(type, new SerialTypeWriter(fields));
+	}
+	
+	private static int getKind(Class<?> type) {
+		if (type == String.class) {
+			return STRING;
+		}
+		else if (type == boolean.class) {
+			return BOOLEAN;
+		}
+		else if (type == byte.class) {
+			return BYTE;
+		}
+		else if (type == char.class) {
+			return CHAR;
+		}
+		else if (type == double.class) {
+			return DOUBLE;
+		}
+		else if (type == float.class) {
+			return FLOAT;
+		}
+		else if (type == int.class) {
+			return INT;
+		}
+		else if (type == long.class) {
+			return LONG;
+		}
+		else if (type == short.class) {
+			return SHORT;
+		}
+		return OBJECT;
+	}
+	
+	private static boolean isPlatformType(Class<?> type) {
+		String name = type.getName();
+		return name.startsWith("java.") || name.startsWith("javax.");
+	}
+}
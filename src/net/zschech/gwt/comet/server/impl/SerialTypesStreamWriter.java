@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.util.Map;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+/**
+ * A GWT RPC stream writer which writes the fields of the objects with a {@link SerialTypeWriter} rather than by
+ * reflection. Objects of other types, including subclasses of the types with writers, are serialized by GWT.
+ * 
+ * GWT still writes the object references and type signatures, so the output is the same as GWT's.
+ * 
+ * @author Richard Zschech
+ */
+public class SerialTypesStreamWriter extends ServerSerializationStreamWriter {
+	
+	private final Map<Class<?>, SerialTypeWriter> writers;
+	
+	/**
+	 * @param serializationPolicy
+	 * @param writers
+	 *            the writers created with the same serialization policy
+	 */
+	public SerialTypesStreamWriter(SerializationPolicy serializationPolicy, Map<Class<?>, SerialTypeWriter> writers) {
+		super(serializationPolicy);
+		this.writers = writers;
+	}
+	
+	@Override
+	protected void serialize(Object instance, String typeSignature) throws SerializationException {
+		SerialTypeWriter writer = writers.get(instance.getClass());
+		if (writer == null) {
+			super.serialize(instance, typeSignature);
+		}
+		else {
+			writer.write(this, instance);
+		}
+	}
+}
@@ -20,14 +20,64 @@ import java.io.IOException;
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 
 public class Servlet30AsyncServlet extends NonBlockingAsyncServlet {
 	
+	// handles requests where async is not supported, for example when async-supported is not set for a filter
+	private BlockingAsyncServlet blocking;
+	
+	/**
+	 * Requests where async is not supported are handled by a {@link BlockingAsyncServlet} rather than failing to
+	 * suspend.
+	 */
+	@Override
+	public AsyncServlet forRequest(HttpServletRequest request) {
+		if (request.isAsyncSupported()) {
+			return this;
+		}
+		synchronized (this) {
+			if (blocking == null) {
+				log("Async is not supported by the Comet request, set async-supported to true for the Comet servlet and its filters. Falling back to blocking the request thread.");
+				BlockingAsyncServlet async = new BlockingAsyncServlet();
+				try {
+					async.init(getServletContext());
+				}
+				catch (ServletException e) {
+					throw new Error("Error setting up blocking async servlet", e);
+				}
+				blocking = async;
+			}
+			return blocking;
+		}
+	}
+	
+	@Override
+	protected void shutdown() {
+		super.shutdown();
+		synchronized (this) {
+			if (blocking != null) {
+				blocking.shutdown();
+			}
+		}
+	}
+	
 	@Override
 	public Object suspend(final CometServletResponseImpl response, CometSessionImpl session, HttpServletRequest request) throws IOException {
 		assert Thread.holdsLock(response);
 		assert session == null || !Thread.holdsLock(session);
+		return startAsync(response, request);
+	}
+	
+	/**
+	 * Puts the request into async mode terminating the Comet response if the async context times out or errors.
+	 */
+	static AsyncContext startAsync(final CometServletResponseImpl response, HttpServletRequest request) throws IOException {
+		assert Thread.holdsLock(response);
+		if (!request.isAsyncSupported()) {
+			throw new IOException("Async is not supported by the Comet request, set async-supported to true for the Comet servlet and its filters");
+		}
 		response.flush();
 		AsyncContext asyncContext = request.startAsync();
 		asyncContext.addListener(new AsyncListener() {
@@ -56,7 +106,6 @@ public class Servlet30AsyncServlet extends NonBlockingAsyncServlet {
 		});
 		
 		asyncContext.setTimeout(Long.MAX_VALUE);
-		write(response, session);
 		return asyncContext;
 	}
 	
@@ -73,9 +122,12 @@ public class Servlet30AsyncServlet extends NonBlockingAsyncServlet {
 	
 	@Override
 	public void enqueued(CometSessionImpl session) {
-		final CometServletResponseImpl response = session.getResponse();
+		CometServletResponseImpl response = session.getResponse();
 		if (response != null) {
-			synchronized (response) {
+			if (response.getAsync() != this) {
+				response.getAsync().enqueued(session);
+			}
+			else {
 				write(response, session);
 			}
 		}
@@ -85,31 +137,72 @@ public class Servlet30AsyncServlet extends NonBlockingAsyncServlet {
 	public void invalidate(CometSessionImpl session) {
 		final CometServletResponseImpl response = session.getResponse();
 		if (response != null) {
-			response.tryTerminate();
+			if (response.getAsync() != this) {
+				response.getAsync().invalidate(session);
+			}
+			else {
+				response.tryTerminate();
+			}
 		}
 	}
 	
-	private void write(final CometServletResponseImpl response, final CometSessionImpl session) {
-		assert Thread.holdsLock(response);
-		if (!session.isEmpty()) {
-			final AsyncContext asyncContext = (AsyncContext) response.getSuspendInfo();
-			asyncContext.start(new Runnable() {
-				@Override
-				public void run() {
-					synchronized (response) {
+	/**
+	 * Schedules a task draining the session's queue unless one is already scheduled. The response is only locked by
+	 * the single draining task so enqueuing threads never contend on it.
+	 */
+	void write(final CometServletResponseImpl response, final CometSessionImpl session) {
+		final AsyncContext asyncContext = (AsyncContext) response.getSuspendInfo();
+		if (asyncContext == null) {
+			// not suspended yet, the response schedules the queued messages once it has been suspended
+			return;
+		}
+		
+		if (!session.isEmpty() && response.setProcessing(true)) {
+			try {
+				asyncContext.start(new Runnable() {
+					@Override
+					public void run() {
+						boolean release = true;
 						try {
-							session.writeQueue(response, true);
+							release = drain(response, session);
 						}
-						catch (IOException e) {
-							log("Error writing session messages");
+						finally {
+							if (release) {
+								response.setProcessing(false);
+							}
 						}
 						
-						if (!session.isEmpty()) {
-							asyncContext.start(this);
+						// pick up messages enqueued while the processing flag was set
+						if (release && !response.isTerminated()) {
+							write(response, session);
 						}
 					}
+				});
+			}
+			catch (IllegalStateException e) {
+				// the async context has been completed
+				response.setProcessing(false);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the session's queued messages to the response.
+	 * 
+	 * @return true if the response's processing flag should be released, false if the processing flag is released
+	 *         later by whoever resumes writing
+	 */
+	boolean drain(CometServletResponseImpl response, CometSessionImpl session) {
+		try {
+			synchronized (response) {
+				if (!response.isTerminated()) {
+					session.writeQueue(response, true);
 				}
-			});
+			}
+		}
+		catch (IOException e) {
+			log("Error writing session messages", e);
 		}
+		return true;
 	}
 }
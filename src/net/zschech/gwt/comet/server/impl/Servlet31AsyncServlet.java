@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+
+/**
+ * An extension of {@link Servlet30AsyncServlet} using Servlet 3.1 non-blocking IO.
+ * 
+ * Once suspended the response's output is only written to while {@link ServletOutputStream#isReady()}. Data that can
+ * not be written is held in a pending buffer and further queued messages are left in the Comet session's queue until
+ * {@link WriteListener#onWritePossible()} is called so a slow client does not block a container thread. The pending
+ * buffer is released, to the servlet's buffer pool if any, once it has been written so a burst of data to a slow client
+ * is not held on to for the rest of the connection.
+ * 
+ * @author Richard Zschech
+ */
+public class Servlet31AsyncServlet extends Servlet30AsyncServlet {
+	
+	@Override
+	public OutputStream getOutputStream(OutputStream outputStream) {
+		if (outputStream instanceof ServletOutputStream) {
+			return new NonBlockingOutputStream((ServletOutputStream) outputStream);
+		}
+		return outputStream;
+	}
+	
+	@Override
+	public Object suspend(final CometServletResponseImpl response, final CometSessionImpl session, HttpServletRequest request) throws IOException {
+		final AsyncContext asyncContext = (AsyncContext) super.suspend(response, session, request);
+		final NonBlockingOutputStream outputStream = getNonBlockingOutputStream(response);
+		if (outputStream != null) {
+			outputStream.setWriteListener(new WriteListener() {
+				
+				@Override
+				public void onWritePossible() throws IOException {
+					boolean resume;
+					synchronized (response) {
+						resume = outputStream.writePending() && outputStream.resume();
+					}
+					if (resume) {
+						response.setProcessing(false);
+						if (session != null && !response.isTerminated()) {
+							write(response, session);
+						}
+					}
+				}
+				
+				@Override
+				public void onError(Throwable t) {
+					synchronized (response) {
+						if (!response.isTerminated()) {
+							response.setTerminated(false);
+						}
+					}
+				}
+			}, asyncContext, response.getBufferPool());
+		}
+		return asyncContext;
+	}
+	
+	@Override
+	public void terminate(CometServletResponseImpl response, CometSessionImpl session, boolean serverInitiated, Object suspendInfo) {
+		assert Thread.holdsLock(response);
+		NonBlockingOutputStream outputStream = getNonBlockingOutputStream(response);
+		if (serverInitiated && suspendInfo != null && outputStream != null && outputStream.hasPending()) {
+			// complete once the pending data has been written
+			outputStream.completeWhenWritten();
+		}
+		else {
+			super.terminate(response, session, serverInitiated, suspendInfo);
+		}
+	}
+	
+	@Override
+	boolean drain(CometServletResponseImpl response, CometSessionImpl session) {
+		NonBlockingOutputStream outputStream = getNonBlockingOutputStream(response);
+		if (outputStream == null) {
+			return super.drain(response, session);
+		}
+		synchronized (response) {
+			if (!outputStream.hasPending()) {
+				super.drain(response, session);
+			}
+			// park the session's messages in its queue until the client can accept more data
+			return !outputStream.hasPending() || !outputStream.park();
+		}
+	}
+	
+	private NonBlockingOutputStream getNonBlockingOutputStream(CometServletResponseImpl response) {
+		OutputStream outputStream = response.getAsyncOutputStream();
+		return outputStream instanceof NonBlockingOutputStream ? (NonBlockingOutputStream) outputStream : null;
+	}
+	
+	/**
+	 * Wraps the servlet output stream writing through until a write listener is set, after which data is only written
+	 * while the output stream is ready and is otherwise buffered until the write listener is notified. It is only
+	 * accessed while holding the Comet response's lock.
+	 */
+	private static class NonBlockingOutputStream extends OutputStream {
+		
+		private static final int INITIAL_PENDING_LENGTH = 1024;
+		
+		private final ServletOutputStream outputStream;
+		
+		private AsyncContext asyncContext;
+		private BufferPool bufferPool;
+		private byte[] pending;
+		private int count;
+		private boolean flushPending;
+		private boolean parked;
+		private boolean complete;
+		
+		public NonBlockingOutputStream(ServletOutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+		
+		void setWriteListener(WriteListener writeListener, AsyncContext asyncContext, BufferPool bufferPool) {
+			this.asyncContext = asyncContext;
+			this.bufferPool = bufferPool;
+			outputStream.setWriteListener(writeListener);
+		}
+		
+		boolean hasPending() {
+			return count != 0 || flushPending;
+		}
+		
+		/**
+		 * Marks the session's messages as parked until the pending data has been written.
+		 * 
+		 * @return false if the messages are already parked
+		 */
+		boolean park() {
+			if (parked) {
+				return false;
+			}
+			parked = true;
+			return true;
+		}
+		
+		/**
+		 * @return true if the session's messages were parked
+		 */
+		boolean resume() {
+			boolean result = parked;
+			parked = false;
+			return result;
+		}
+		
+		void completeWhenWritten() {
+			complete = true;
+		}
+		
+		/**
+		 * Writes as much pending data as the servlet output stream accepts.
+		 * 
+		 * @return true if all the pending data has been written
+		 * @throws IOException
+		 */
+		boolean writePending() throws IOException {
+			if (count != 0 && outputStream.isReady()) {
+				outputStream.write(pending, 0, count);
+				count = 0;
+				releasePending();
+			}
+			if (flushPending && count == 0 && outputStream.isReady()) {
+				outputStream.flush();
+				flushPending = false;
+			}
+			if (hasPending()) {
+				return false;
+			}
+			if (complete) {
+				complete = false;
+				asyncContext.complete();
+			}
+			return true;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (asyncContext == null) {
+				outputStream.write(b, off, len);
+			}
+			else if (count == 0 && outputStream.isReady()) {
+				outputStream.write(b, off, len);
+			}
+			else {
+				if (pending == null || count + len > pending.length) {
+					int length = pending == null ? INITIAL_PENDING_LENGTH : pending.length * 2;
+					while (length < count + len) {
+						length *= 2;
+					}
+					byte[] newPending = acquire(length);
+					if (pending != null) {
+						System.arraycopy(pending, 0, newPending, 0, count);
+						releasePending();
+					}
+					pending = newPending;
+				}
+				System.arraycopy(b, off, pending, count, len);
+				count += len;
+			}
+		}
+		
+		private byte[] acquire(int length) {
+			return bufferPool == null ? new byte[length] : bufferPool.acquireBytes(length);
+		}
+		
+		private void releasePending() {
+			if (bufferPool != null) {
+				bufferPool.releaseBytes(pending);
+			}
+			pending = null;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (asyncContext == null) {
+				outputStream.flush();
+			}
+			else {
+				flushPending = true;
+				writePending();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (asyncContext == null) {
+				outputStream.close();
+			}
+			else {
+				// the async context is completed once the pending data has been written
+				flush();
+			}
+		}
+	}
+}
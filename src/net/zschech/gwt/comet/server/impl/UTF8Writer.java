@@ -0,0 +1,401 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import net.zschech.gwt.comet.server.deflate.BlockWriter;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+
+/**
+ * A {@link Writer} encoding UTF-8 directly into a reusable byte buffer. Unlike an {@link java.io.OutputStreamWriter}
+ * the number of bytes encoded is known exactly at any time without flushing the encoder, and the underlying stream is
+ * only written to when the buffer fills up or the writer is flushed.
+ * 
+ * Unpaired surrogates are encoded as '?' like the JDK's UTF-8 encoder.
+ * 
+ * Already encoded UTF-8 bytes, such as a deRPC payload, can be written through {@link #getByteStream()} without
+ * decoding them. ASCII characters can be escaped on the fly, both in characters and in bytes written through the byte
+ * stream, so a message can be serialized and escaped straight into the buffer, see {@link #setEscapes(String[])}.
+ * 
+ * A position can be marked so that a message which fails part way through being written can be discarded, see
+ * {@link #mark()}.
+ * 
+ * If a {@link BufferPool} is provided the byte buffer is released to it after each flush and acquired again on the
+ * next write so idle writers do not hold a buffer.
+ * 
+ * @author Richard Zschech
+ */
+public class UTF8Writer extends Writer {
+	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	private final OutputStream out;
+	
+	// the buffer is flushed when there is less than four bytes left so each character can be encoded without checking
+	private final int bufferSize;
+	private final BufferPool bufferPool;
+	private byte[] buffer;
+	private int position;
+	private int count;
+	private char highSurrogate;
+	private String[] escapes;
+	private OutputStream byteStream;
+	private int markPosition = -1;
+	private int markCount;
+	private char markHighSurrogate;
+	
+	public UTF8Writer(OutputStream out) {
+		this(out, BUFFER_SIZE, null);
+	}
+	
+	public UTF8Writer(OutputStream out, BufferPool bufferPool) {
+		this(out, BUFFER_SIZE, bufferPool);
+	}
+	
+	public UTF8Writer(OutputStream out, int bufferSize, BufferPool bufferPool) {
+		this.out = out;
+		this.bufferSize = Math.max(bufferSize, 16);
+		this.bufferPool = bufferPool;
+		if (bufferPool == null) {
+			buffer = new byte[this.bufferSize];
+		}
+	}
+	
+	/**
+	 * Sets the escape sequences of ASCII characters written from now on. The escape sequences must be at most two ASCII
+	 * characters long.
+	 * 
+	 * @param escapes
+	 *            the escape sequences indexed by ASCII character, null for the characters written as is, or null to
+	 *            stop escaping
+	 */
+	public void setEscapes(String[] escapes) {
+		this.escapes = escapes;
+	}
+	
+	/**
+	 * @return a stream writing already encoded UTF-8 bytes through this writer's buffer, escaping them if escapes are
+	 *         set. It must only be given complete UTF-8 sequences and is not closed or flushed with this writer.
+	 */
+	public OutputStream getByteStream() {
+		if (byteStream == null) {
+			byteStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					writeBytes(new byte[] { (byte) b }, 0, 1);
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					writeBytes(b, off, len);
+				}
+			};
+		}
+		return byteStream;
+	}
+	
+	/**
+	 * Marks the current position so what is written from now on can be discarded with {@link #reset()}. Until the mark
+	 * is cleared or reset the buffer grows rather than being written to the underlying stream.
+	 */
+	public void mark() {
+		acquireBuffer();
+		markPosition = position;
+		markCount = count;
+		markHighSurrogate = highSurrogate;
+	}
+	
+	/**
+	 * Discards what has been written since {@link #mark()} and clears the mark.
+	 */
+	public void reset() {
+		if (markPosition < 0) {
+			throw new IllegalStateException("Not marked");
+		}
+		position = markPosition;
+		count = markCount;
+		highSurrogate = markHighSurrogate;
+		markPosition = -1;
+	}
+	
+	/**
+	 * Keeps what has been written since {@link #mark()} and clears the mark.
+	 */
+	public void clearMark() {
+		markPosition = -1;
+	}
+	
+	/**
+	 * @return the number of bytes encoded by this writer including those not yet written to the underlying stream
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	@Override
+	public void write(int c) throws IOException {
+		acquireBuffer();
+		if (position > buffer.length - 4) {
+			flushBuffer();
+		}
+		encode((char) c);
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		acquireBuffer();
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			if (position > buffer.length - 4) {
+				flushBuffer();
+			}
+			char c = cbuf[i];
+			if (c < 0x80 && highSurrogate == 0 && (escapes == null || escapes[c] == null)) {
+				buffer[position++] = (byte) c;
+				count++;
+			}
+			else {
+				encode(c);
+			}
+		}
+	}
+	
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		append(str, off, off + len);
+	}
+	
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		return append(csq, 0, csq.length());
+	}
+	
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		acquireBuffer();
+		for (int i = start; i < end; i++) {
+			if (position > buffer.length - 4) {
+				flushBuffer();
+			}
+			char c = csq.charAt(i);
+			if (c < 0x80 && highSurrogate == 0 && (escapes == null || escapes[c] == null)) {
+				buffer[position++] = (byte) c;
+				count++;
+			}
+			else {
+				encode(c);
+			}
+		}
+		return this;
+	}
+	
+	@Override
+	public Writer append(char c) throws IOException {
+		write(c);
+		return this;
+	}
+	
+	private void encode(char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				count += 4;
+				return;
+			}
+			// the '?' and the following character fit in the four bytes left for each character
+			buffer[position++] = '?';
+			count++;
+		}
+		
+		if (c < 0x80) {
+			if (escapes != null && escapes[c] != null) {
+				encodeEscape(escapes[c]);
+			}
+			else {
+				buffer[position++] = (byte) c;
+				count++;
+			}
+		}
+		else if (c < 0x800) {
+			buffer[position++] = (byte) (0xC0 | (c >> 6));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			count += 2;
+		}
+		else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		}
+		else if (Character.isLowSurrogate(c)) {
+			buffer[position++] = '?';
+			count++;
+		}
+		else {
+			buffer[position++] = (byte) (0xE0 | (c >> 12));
+			buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			count += 3;
+		}
+	}
+	
+	/**
+	 * Encodes a trailing high surrogate as '?' when it is not followed by more characters. There is always room for it
+	 * since the buffer is flushed before encoding each character.
+	 */
+	private void encodeUnpairedSurrogate() {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			buffer[position++] = '?';
+			count++;
+		}
+	}
+	
+	private void encodeEscape(String escape) {
+		for (int i = 0; i < escape.length(); i++) {
+			buffer[position++] = (byte) escape.charAt(i);
+		}
+		count += escape.length();
+	}
+	
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		acquireBuffer();
+		encodeUnpairedSurrogate();
+		int end = off + len;
+		if (escapes == null) {
+			while (off < end) {
+				if (position == buffer.length) {
+					flushBuffer();
+				}
+				int n = Math.min(end - off, buffer.length - position);
+				System.arraycopy(b, off, buffer, position, n);
+				position += n;
+				count += n;
+				off += n;
+			}
+		}
+		else {
+			for (int i = off; i < end; i++) {
+				if (position > buffer.length - 4) {
+					flushBuffer();
+				}
+				byte c = b[i];
+				if (c >= 0 && escapes[c] != null) {
+					encodeEscape(escapes[c]);
+				}
+				else {
+					buffer[position++] = c;
+					count++;
+				}
+			}
+		}
+	}
+	
+	private void acquireBuffer() {
+		if (buffer == null) {
+			buffer = bufferPool.acquireBytes(bufferSize);
+		}
+	}
+	
+	private void releaseBuffer() {
+		if (bufferPool != null && buffer != null && position == 0 && highSurrogate == 0) {
+			bufferPool.releaseBytes(buffer);
+			buffer = null;
+		}
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (buffer == null) {
+			// released to the buffer pool with nothing pending
+			return;
+		}
+		if (markPosition >= 0) {
+			// keep the marked bytes until the mark is cleared
+			if (buffer.length - position >= 4) {
+				return;
+			}
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+			return;
+		}
+		if (position > 0) {
+			int length = position;
+			position = 0;
+			out.write(buffer, 0, length);
+		}
+		if (buffer.length > bufferSize) {
+			// the buffer grew while marked, go back to a buffer of the usual size
+			buffer = bufferPool == null ? new byte[bufferSize] : bufferPool.acquireBytes(bufferSize);
+		}
+	}
+	
+	/**
+	 * Writes the encoded bytes followed by independently compressed deflate blocks to the underlying stream which must
+	 * be the block writer. The blocks' uncompressed length is added to the count of bytes encoded.
+	 * 
+	 * @param blockWriter
+	 * @param blocks
+	 * @param data
+	 *            the uncompressed data of the blocks
+	 * @throws IOException
+	 */
+	public void writeBlocks(BlockWriter blockWriter, byte[] blocks, byte[] data) throws IOException {
+		acquireBuffer();
+		encodeUnpairedSurrogate();
+		flushBuffer();
+		blockWriter.writeBlocks(blocks, 0, blocks.length, data, 0, data.length);
+		count += data.length;
+	}
+	
+	/**
+	 * Writes the encoded bytes to the underlying stream and flushes it. A trailing high surrogate is kept until the next
+	 * character is written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		releaseBuffer();
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (highSurrogate != 0) {
+			acquireBuffer();
+			encodeUnpairedSurrogate();
+		}
+		try {
+			flushBuffer();
+			releaseBuffer();
+		}
+		finally {
+			out.close();
+		}
+	}
+}
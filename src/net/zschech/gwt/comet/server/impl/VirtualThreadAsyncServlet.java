@@ -0,0 +1,548 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comet.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+
+/**
+ * An AsyncServlet implementation running the same wait, write and heartbeat loop as {@link BlockingAsyncServlet} on a
+ * thread of its own rather than on the HTTP request thread, which is released using Servlet 3.0 async.
+ * 
+ * Virtual threads are used when the JVM supports them so idle connections only cost a parked virtual thread. Otherwise
+ * platform threads are used. Idle connections wait on a {@link Condition} rather than the Comet response's monitor so
+ * they do not pin the virtual thread's carrier thread.
+ * 
+ * Once suspended the response's output is buffered under the connection's {@link ReentrantLock} and only the
+ * connection's thread writes it to the servlet output stream, without holding the Comet response's monitor or any other
+ * lock. The monitor is only held while messages and heartbeats are encoded into memory so a virtual thread blocked
+ * writing to a slow client does not pin its carrier thread. The session's queued messages are not drained while the
+ * connection's thread is writing so a slow client holds back its own messages rather than buffering them.
+ * 
+ * Requests that can not be released from the HTTP request thread, because the container has no Servlet 3.0 async API
+ * or async is not supported by the request, run the same loop on the request thread instead. That blocks the request
+ * thread like {@link BlockingAsyncServlet} but still waits on a {@link Condition} and writes outside the monitor so it
+ * does not pin carrier threads on containers that run requests on virtual threads.
+ * 
+ * @author Richard Zschech
+ */
+public class VirtualThreadAsyncServlet extends AsyncServlet {
+	
+	private ExecutorService executor;
+	private boolean asyncApi;
+	
+	// handles requests that can not be released from the request thread
+	private RequestThreadAsyncServlet requestThread;
+	
+	@Override
+	protected void init(ServletContext context) throws ServletException {
+		super.init(context);
+		try {
+			Class.forName("javax.servlet.AsyncContext");
+			asyncApi = context.getMajorVersion() >= 3;
+		}
+		catch (Throwable e) {
+			asyncApi = false;
+		}
+		try {
+			// Thread.ofVirtual().name("gwt-comet ", 0).factory()
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, Long.TYPE).invoke(builder, "gwt-comet ", 0L);
+			ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+			log("Running Comet connections on virtual threads");
+		}
+		catch (Throwable e) {
+			log("Virtual threads are not supported, running Comet connections on platform threads: " + e);
+			executor = Executors.newCachedThreadPool(createThreadFactory("gwt-comet "));
+		}
+	}
+	
+	@Override
+	protected void shutdown() {
+		executor.shutdownNow();
+		super.shutdown();
+		synchronized (this) {
+			if (requestThread != null) {
+				requestThread.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Requests that can not be released from the request thread are handled by a {@link RequestThreadAsyncServlet}
+	 * rather than failing to suspend.
+	 */
+	@Override
+	public AsyncServlet forRequest(HttpServletRequest request) {
+		if (asyncApi && request.isAsyncSupported()) {
+			return this;
+		}
+		synchronized (this) {
+			if (requestThread == null) {
+				if (asyncApi) {
+					log("Async is not supported by the Comet request, set async-supported to true for the Comet servlet and its filters. Falling back to running Comet connections on the request thread.");
+				}
+				else {
+					log("The servlet container does not support Servlet 3.0 async. Running Comet connections on the request thread.");
+				}
+				RequestThreadAsyncServlet async = new RequestThreadAsyncServlet();
+				try {
+					async.init(getServletContext());
+				}
+				catch (ServletException e) {
+					throw new Error("Error setting up request thread async servlet", e);
+				}
+				requestThread = async;
+			}
+			return requestThread;
+		}
+	}
+	
+	@Override
+	public OutputStream getOutputStream(OutputStream outputStream) {
+		return new Connection(outputStream);
+	}
+	
+	@Override
+	public Object suspend(final CometServletResponseImpl response, final CometSessionImpl session, HttpServletRequest request) throws IOException {
+		assert Thread.holdsLock(response);
+		assert session == null || !Thread.holdsLock(session);
+		
+		final Connection connection = getConnection(response);
+		connection.start(Servlet30AsyncServlet.startAsync(response, request), response.getBufferPool());
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					process(response, session, connection);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			throw new IOException("Error starting Comet connection thread: " + e.getMessage());
+		}
+		return connection;
+	}
+	
+	/**
+	 * Writes the session's queued messages, heartbeats and the response's buffered output until the response is
+	 * terminated then completes the async context if the termination was server initiated.
+	 */
+	private void process(CometServletResponseImpl response, CometSessionImpl session, Connection connection) {
+		boolean failed = false;
+		try {
+			if (session != null) {
+				response.setProcessing(true);
+			}
+			
+			while (!connection.isTerminated() && (session == null || session.isValid())) {
+				if (connection.writePending()) {
+					continue;
+				}
+				
+				if (session != null && !session.isEmpty()) {
+					synchronized (response) {
+						if (!response.isTerminated()) {
+							session.writeQueue(response, true);
+						}
+					}
+					continue;
+				}
+				
+				long heartbeatTime = response.getHeartbeatScheduleTime();
+				if (heartbeatTime <= 0) {
+					response.heartbeat();
+					continue;
+				}
+				
+				if (session != null) {
+					response.setProcessing(false);
+					// pick up messages enqueued before the processing flag was cleared
+					if (!session.isEmpty() && response.setProcessing(true)) {
+						continue;
+					}
+				}
+				connection.await(heartbeatTime);
+				if (session != null) {
+					response.setProcessing(true);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			log("Interrupted waiting for messages", e);
+			response.tryTerminate();
+		}
+		catch (IOException e) {
+			log("Error writing messages", e);
+			failed = true;
+			synchronized (response) {
+				if (!response.isTerminated()) {
+					response.setTerminated(false);
+				}
+			}
+		}
+		
+		if (session != null && !session.isValid() && !response.isTerminated()) {
+			response.tryTerminate();
+		}
+		
+		try {
+			connection.finish(failed);
+		}
+		catch (IOException e) {
+			log("Error writing messages", e);
+		}
+	}
+	
+	@Override
+	public void terminate(CometServletResponseImpl response, CometSessionImpl session, boolean serverInitiated, Object suspendInfo) {
+		assert Thread.holdsLock(response);
+		Connection connection = getConnection(response);
+		if (connection != null) {
+			connection.terminate(serverInitiated);
+		}
+	}
+	
+	@Override
+	public void invalidate(CometSessionImpl session) {
+		CometServletResponseImpl response = session.getResponse();
+		if (response != null) {
+			signal(response);
+		}
+	}
+	
+	@Override
+	public void enqueued(CometSessionImpl session) {
+		CometServletResponseImpl response = session.getResponse();
+		if (response != null && response.setProcessing(true)) {
+			signal(response);
+		}
+	}
+	
+	private static void signal(CometServletResponseImpl response) {
+		Connection connection = getConnection(response);
+		if (connection != null) {
+			connection.signal();
+		}
+	}
+	
+	private static Connection getConnection(CometServletResponseImpl response) {
+		OutputStream outputStream = response.getAsyncOutputStream();
+		return outputStream instanceof Connection ? (Connection) outputStream : null;
+	}
+	
+	/**
+	 * Runs the connection loop on the HTTP request thread. It extends {@link BlockingAsyncServlet} so the Comet response
+	 * suspends it without holding its monitor.
+	 */
+	private class RequestThreadAsyncServlet extends BlockingAsyncServlet {
+		
+		@Override
+		public OutputStream getOutputStream(OutputStream outputStream) {
+			return new Connection(outputStream);
+		}
+		
+		@Override
+		public Object suspend(CometServletResponseImpl response, CometSessionImpl session, HttpServletRequest request) throws IOException {
+			assert !Thread.holdsLock(response);
+			Connection connection = getConnection(response);
+			connection.start(null, response.getBufferPool());
+			process(response, session, connection);
+			return null;
+		}
+		
+		@Override
+		public void terminate(CometServletResponseImpl response, CometSessionImpl session, boolean serverInitiated, Object suspendInfo) {
+			VirtualThreadAsyncServlet.this.terminate(response, session, serverInitiated, suspendInfo);
+		}
+		
+		@Override
+		public void invalidate(CometSessionImpl session) {
+			VirtualThreadAsyncServlet.this.invalidate(session);
+		}
+		
+		@Override
+		public void enqueued(CometSessionImpl session) {
+			VirtualThreadAsyncServlet.this.enqueued(session);
+		}
+	}
+	
+	/**
+	 * Wraps the servlet output stream writing through until the connection is started, after which data is buffered
+	 * under the connection's lock and written by the connection's thread with {@link #writePending()}. The connection's
+	 * thread waits on the lock's condition for data, messages, invalidation or termination.
+	 */
+	private static class Connection extends OutputStream {
+		
+		private static final int INITIAL_PENDING_LENGTH = 1024;
+		
+		private final OutputStream outputStream;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition condition = lock.newCondition();
+		
+		private AsyncContext asyncContext;
+		private BufferPool bufferPool;
+		private boolean started;
+		private boolean signalled;
+		private byte[] pending;
+		private int count;
+		private boolean flushPending;
+		private boolean terminated;
+		private boolean complete;
+		
+		public Connection(OutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+		
+		void start(AsyncContext asyncContext, BufferPool bufferPool) {
+			lock.lock();
+			try {
+				this.asyncContext = asyncContext;
+				this.bufferPool = bufferPool;
+				started = true;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		boolean isTerminated() {
+			lock.lock();
+			try {
+				return terminated;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		void terminate(boolean serverInitiated) {
+			lock.lock();
+			try {
+				terminated = true;
+				complete = serverInitiated;
+				signalled = true;
+				condition.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		void signal() {
+			lock.lock();
+			try {
+				signalled = true;
+				condition.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		void await(long time) throws InterruptedException {
+			lock.lock();
+			try {
+				if (!signalled) {
+					condition.await(time, TimeUnit.MILLISECONDS);
+				}
+				signalled = false;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Writes the buffered data to the servlet output stream without holding any lock. It is only called by the
+		 * connection's thread.
+		 * 
+		 * @return true if there was data to write
+		 * @throws IOException
+		 */
+		boolean writePending() throws IOException {
+			byte[] b;
+			int len;
+			boolean flush;
+			lock.lock();
+			try {
+				b = pending;
+				len = count;
+				flush = flushPending;
+				pending = null;
+				count = 0;
+				flushPending = false;
+			}
+			finally {
+				lock.unlock();
+			}
+			
+			if (b == null && !flush) {
+				return false;
+			}
+			try {
+				if (len != 0) {
+					outputStream.write(b, 0, len);
+				}
+				if (flush) {
+					outputStream.flush();
+				}
+			}
+			finally {
+				if (b != null && bufferPool != null) {
+					bufferPool.releaseBytes(b);
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Writes the remaining data and completes the async context if the response was terminated by the server, or
+		 * discards it if the client went away.
+		 * 
+		 * @param failed
+		 *            true if writing failed so the async context is completed as the container has not been notified
+		 * @throws IOException
+		 */
+		void finish(boolean failed) throws IOException {
+			boolean write;
+			lock.lock();
+			try {
+				write = complete && !failed;
+			}
+			finally {
+				lock.unlock();
+			}
+			try {
+				if (write) {
+					while (writePending()) {
+					}
+				}
+			}
+			finally {
+				lock.lock();
+				try {
+					if (pending != null && bufferPool != null) {
+						bufferPool.releaseBytes(pending);
+					}
+					pending = null;
+					count = 0;
+				}
+				finally {
+					lock.unlock();
+				}
+				
+				if ((write || failed) && asyncContext != null) {
+					try {
+						asyncContext.complete();
+					}
+					catch (IllegalStateException e) {
+						// the async context has already been completed
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			lock.lock();
+			try {
+				if (started) {
+					if (pending == null || count + len > pending.length) {
+						int length = pending == null ? INITIAL_PENDING_LENGTH : pending.length * 2;
+						while (length < count + len) {
+							length *= 2;
+						}
+						byte[] newPending = bufferPool == null ? new byte[length] : bufferPool.acquireBytes(length);
+						if (pending != null) {
+							System.arraycopy(pending, 0, newPending, 0, count);
+							if (bufferPool != null) {
+								bufferPool.releaseBytes(pending);
+							}
+						}
+						pending = newPending;
+					}
+					System.arraycopy(b, off, pending, count, len);
+					count += len;
+					signalled = true;
+					condition.signalAll();
+					return;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			// not started so written by the thread holding the Comet response's monitor
+			outputStream.write(b, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			lock.lock();
+			try {
+				if (started) {
+					flushPending = true;
+					signalled = true;
+					condition.signalAll();
+					return;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			outputStream.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			lock.lock();
+			try {
+				if (started) {
+					// the connection's thread writes the remaining data before completing the async context
+					flushPending = true;
+					signalled = true;
+					condition.signalAll();
+					return;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			outputStream.close();
+		}
+	}
+}
@@ -193,6 +193,11 @@ public class CometTestEntryPoint implements EntryPoint {
 	public static final char ESCAPE_START = 32;
 	public static final char ESCAPE_END = 127;
 	public static final String ESCAPE;
+	// two, three and four byte UTF-8 characters around characters which are escaped
+	public static final String ESCAPE_UNICODE = "\u00e9'\u00ff\\\u0800/\u20ac\uffe5\ud834\udd1e')</script>\u00e9";
+	// longer than the server's writer buffer so escaping spans buffer boundaries
+	public static final String ESCAPE_LARGE;
+	public static final String[] ESCAPES;
 	static {
 		StringBuilder result = new StringBuilder();
 		result.append(' '); // event source discards prefixed spaces
@@ -203,6 +208,14 @@ public class CometTestEntryPoint implements EntryPoint {
 		result.append("')</script>");
 		result.append(' ');
 		ESCAPE = result.toString();
+		
+		result = new StringBuilder();
+		while (result.length() < 16 * 1024) {
+			result.append(ESCAPE).append(ESCAPE_UNICODE);
+		}
+		ESCAPE_LARGE = result.toString();
+		
+		ESCAPES = new String[] { ESCAPE, ESCAPE_UNICODE, ESCAPE_LARGE };
 	}
 	
 	@SerialTypes(mode = SerialMode.RPC, value = { TestData.class })
@@ -524,6 +537,7 @@ public class CometTestEntryPoint implements EntryPoint {
 	class EscapeTest extends CometTest {
 		
 		private final SerialMode mode;
+		private int stringCount;
 		
 		EscapeTest(SerialMode mode) {
 			super("escape mode=" + mode, false);
@@ -533,6 +547,7 @@ public class CometTestEntryPoint implements EntryPoint {
 		@Override
 		void start() {
 			String url = GWT.getModuleBaseURL() + "escape";
+			stringCount = 0;
 			
 			super.start(url, mode);
 		}
@@ -544,13 +559,16 @@ public class CometTestEntryPoint implements EntryPoint {
 			for (Serializable m : messages) {
 				String type;
 				String message;
+				String escape;
 				if (m instanceof TestData) {
 					type = "gwt serialized object";
 					message = ((TestData) m).s;
+					escape = ESCAPES[(int) ((TestData) m).d];
 				}
 				else if (m instanceof String) {
 					type = "string";
 					message = (String) m;
+					escape = ESCAPES[stringCount++ % ESCAPES.length];
 				}
 				else if (m == null) {
 					continue;
@@ -560,12 +578,12 @@ public class CometTestEntryPoint implements EntryPoint {
 					continue;
 				}
 				
-				if (ESCAPE.length() != message.length()) {
-					fail(type + " expected message length " + ESCAPE.length() + " acutal " + message.length());
+				if (escape.length() != message.length()) {
+					fail(type + " expected message length " + escape.length() + " acutal " + message.length());
 				}
 				else {
-					for (int i = 0; i < ESCAPE.length(); i++) {
-						char expected = ESCAPE.charAt(i);
+					for (int i = 0; i < escape.length(); i++) {
+						char expected = escape.charAt(i);
 						char actual = message.charAt(i);
 						if (expected != actual) {
 							fail(type + " expected character " + expected + " 0x" + Integer.toHexString(expected) + " actual " + actual + " 0x" + Integer.toHexString(actual));
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comettest.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.zschech.gwt.comet.server.CompressionProvider;
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+import net.zschech.gwt.comet.server.deflate.Deflater;
+import net.zschech.gwt.comet.server.impl.DeflateCompressionProvider;
+import net.zschech.gwt.comet.server.impl.JdkCompressionProvider;
+import net.zschech.gwt.comet.server.impl.UTF8Writer;
+
+/**
+ * Benchmarks compressing Comet responses outside of a servlet container. Many connections each write a stream of small
+ * Comet-like messages and flush after each one, interleaved round robin like a server broadcasting to its clients.
+ * 
+ * For each configuration the time to write all the messages, the compression ratio and the heap held by each idle
+ * connection, including its share of pooled buffers, are printed. The output of every configuration is first checked
+ * to inflate back to the messages written.
+ * 
+ * Usage: CompressionBenchmark [connections [messages [runs]]]
+ * 
+ * @author Richard Zschech
+ */
+public class CompressionBenchmark {
+	
+	public static void main(String[] args) throws IOException {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		
+		String[][] traffic = generateTraffic(connections, messages, new Random(1));
+		long size = 0;
+		for (String[] connection : traffic) {
+			for (String message : connection) {
+				size += message.length();
+			}
+		}
+		System.out.println(connections + " connections, " + messages + " messages each, " + size / (connections * messages) + " bytes per message, best of " + runs + " runs");
+		System.out.println();
+		System.out.println(String.format("%-32s %10s %10s %10s %14s", "configuration", "ms", "MB/s", "ratio", "idle bytes"));
+		
+		// the bundled deflater holding or pooling its buffers between flushes, starting with a 1KB window growing to 32KB
+		run("deflate, buffers held", new DeflateCompressionProvider(), null, traffic, runs);
+		run("deflate, buffers pooled", new DeflateCompressionProvider(), new BufferPool(1000), traffic, runs);
+		
+		// the bundled deflater with the standard 32KB window from the start
+		DeflateCompressionProvider full = new DeflateCompressionProvider();
+		full.setWindowBits(15, 15);
+		run("deflate, full window", full, new BufferPool(1000), traffic, runs);
+		
+		// the JDK's native zlib, whose native memory is not included in the idle bytes
+		run("jdk-deflate level 6", new JdkCompressionProvider(false, 6), null, traffic, runs);
+		run("jdk-deflate level 1", new JdkCompressionProvider(false, 1), null, traffic, runs);
+		run("gzip level 6", new JdkCompressionProvider(true, 6), null, traffic, runs);
+		
+		// the bundled deflater's levels
+		for (int level : new int[] { Deflater.HUFF, Deflater.SPEED, Deflater.MEDIUM, Deflater.COMPACT }) {
+			run("deflate level " + level, new DeflateCompressionProvider(level), null, traffic, runs);
+		}
+	}
+	
+	private static void run(String name, CompressionProvider provider, BufferPool bufferPool, String[][] traffic, int runs) throws IOException {
+		verify(name, provider, bufferPool, traffic);
+		
+		long best = Long.MAX_VALUE;
+		long in = 0;
+		long out = 0;
+		long idle = 0;
+		for (int run = 0; run < runs; run++) {
+			CountingOutputStream counter = new CountingOutputStream();
+			long before = usedMemory();
+			UTF8Writer[] writers = new UTF8Writer[traffic.length];
+			for (int i = 0; i < writers.length; i++) {
+				writers[i] = new UTF8Writer(provider.getOutputStream(counter, bufferPool), bufferPool);
+			}
+			
+			long start = System.nanoTime();
+			write(writers, traffic);
+			best = Math.min(best, System.nanoTime() - start);
+			
+			idle = (usedMemory() - before) / writers.length;
+			in = 0;
+			for (UTF8Writer writer : writers) {
+				in += writer.getCount();
+				writer.close();
+			}
+			out = counter.count;
+		}
+		
+		double ms = best / 1e6;
+		System.out.println(String.format("%-32s %10.1f %10.1f %9.1f%% %14d", name, ms, in / ms / 1e3, 100.0 * out / in, idle));
+	}
+	
+	private static void write(UTF8Writer[] writers, String[][] traffic) throws IOException {
+		int messages = traffic[0].length;
+		for (int m = 0; m < messages; m++) {
+			for (int i = 0; i < writers.length; i++) {
+				writers[i].append(traffic[i][m]);
+				writers[i].flush();
+			}
+		}
+	}
+	
+	/**
+	 * Checks each connection's sync flushed output inflates back to its messages.
+	 */
+	private static void verify(String name, CompressionProvider provider, BufferPool bufferPool, String[][] traffic) throws IOException {
+		ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[traffic.length];
+		UTF8Writer[] writers = new UTF8Writer[traffic.length];
+		for (int i = 0; i < writers.length; i++) {
+			outputs[i] = new ByteArrayOutputStream();
+			writers[i] = new UTF8Writer(provider.getOutputStream(outputs[i], bufferPool), bufferPool);
+		}
+		write(writers, traffic);
+		
+		for (int i = 0; i < writers.length; i++) {
+			StringBuilder expected = new StringBuilder();
+			for (String message : traffic[i]) {
+				expected.append(message);
+			}
+			byte[] compressed = outputs[i].toByteArray();
+			// skip the gzip header
+			int offset = "gzip".equals(provider.getContentEncoding()) ? 10 : 0;
+			if (!Arrays.equals(expected.toString().getBytes("UTF-8"), inflate(compressed, offset))) {
+				throw new IllegalStateException(name + ": connection " + i + " does not inflate to its messages");
+			}
+			writers[i].close();
+		}
+	}
+	
+	static byte[] inflate(byte[] compressed, int offset) throws IOException {
+		Inflater inflater = new Inflater(true);
+		// the raw inflater needs an extra byte to make progress at the end of its input
+		byte[] input = Arrays.copyOfRange(compressed, offset, compressed.length + 1);
+		inflater.setInput(input);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			int n;
+			while ((n = inflater.inflate(buffer)) > 0) {
+				result.write(buffer, 0, n);
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Invalid deflate data: " + e.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+		return result.toByteArray();
+	}
+	
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/**
+	 * Generates RPC serialized chat messages and status updates with a few users, type names and phrases repeated
+	 * between messages like real Comet traffic.
+	 */
+	private static String[][] generateTraffic(int connections, int messages, Random random) {
+		String[] users = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+		String[] words = { "hello", "the", "meeting", "is", "moved", "to", "tomorrow", "at", "ten", "thanks", "see", "you", "there", "ok", "what", "about", "lunch", "\u00e9t\u00e9", "caf\u00e9" };
+		String[] statuses = { "ONLINE", "AWAY", "BUSY", "OFFLINE" };
+		
+		String[][] traffic = new String[connections][messages];
+		for (int i = 0; i < connections; i++) {
+			for (int m = 0; m < messages; m++) {
+				String user = users[random.nextInt(users.length)];
+				if (random.nextInt(4) == 0) {
+					traffic[i][m] = "[\"" + statuses[random.nextInt(statuses.length)] + "\",\"" + user + "\",\"net.zschech.gwt.chat.client.StatusUpdate/2468913570\"],0,5]";
+				}
+				else {
+					StringBuilder text = new StringBuilder();
+					int length = 3 + random.nextInt(20);
+					for (int w = 0; w < length; w++) {
+						text.append(words[random.nextInt(words.length)]).append(' ');
+					}
+					traffic[i][m] = "[" + random.nextInt(100000) + ",\"" + text + "\",\"" + user + "\",\"net.zschech.gwt.chat.client.ChatMessage/3519237581\"],0,5]";
+				}
+			}
+		}
+		return traffic;
+	}
+	
+	private static class CountingOutputStream extends OutputStream {
+		
+		private long count;
+		
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
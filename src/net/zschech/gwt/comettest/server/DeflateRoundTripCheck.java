@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comettest.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.zschech.gwt.comet.server.deflate.BufferPool;
+import net.zschech.gwt.comet.server.deflate.Deflater;
+
+/**
+ * Checks the bundled deflater's output inflates back to its input with the JDK's inflater for the ways Comet responses
+ * drive it beyond a plain stream:
+ * <ul>
+ * <li>the first bytes of a stream written one at a time with sync flushes in between</li>
+ * <li>the compression level switched between flushes, including to and from the HUFF and STORED levels</li>
+ * <li>a small window growing while the stream is written, keeping the data written before it grew</li>
+ * <li>broadcast messages compressed once and spliced into the stream, keeping the data written before them and adding
+ * their own data to the history</li>
+ * </ul>
+ * 
+ * Each check writes random Comet-like streams from a fixed seed so a failure can be reproduced.
+ * 
+ * Usage: DeflateRoundTripCheck [streams [seed]]
+ * 
+ * @author Richard Zschech
+ */
+public class DeflateRoundTripCheck {
+	
+	private static final int[] LEVELS = { Deflater.HUFF, Deflater.SPEED, Deflater.MEDIUM, Deflater.COMPACT, Deflater.STORED };
+	
+	private static final String[] PHRASES = { "//OK[", "net.zschech.gwt.chat.client.ChatMessage/1234567890", "java.lang.String/2004016611", "\"hello\",", "\"user", "]", ",0,", "status" };
+	
+	public static void main(String[] args) throws IOException {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		
+		checkFirstBytes();
+		checkGrowthKeepsHistory();
+		checkSplicingKeepsHistory();
+		for (int i = 0; i < streams; i++) {
+			Random random = new Random(seed + i);
+			BufferPool bufferPool = random.nextBoolean() ? new BufferPool(4) : null;
+			checkLevelSwitches(random, bufferPool);
+			checkWindowGrowth(random, bufferPool);
+			checkSplicing(random, bufferPool);
+		}
+		System.out.println("OK, " + streams + " random streams of each kind from seed " + seed);
+	}
+	
+	/**
+	 * A single byte first write used to leave the deflater expecting its first byte, dropping it, and a sync flush after
+	 * the first byte used to emit it twice.
+	 */
+	private static void checkFirstBytes() throws IOException {
+		byte[] data = "abcabcabcabc".getBytes("UTF-8");
+		for (int level : LEVELS) {
+			for (int split = 1; split <= 3; split++) {
+				for (int flushes = 0; flushes < 2; flushes++) {
+					Stream stream = new Stream(new Deflater(level, 15, null));
+					for (int i = 0; i < data.length; i += split) {
+						stream.write(data, i, Math.min(split, data.length - i));
+						if (flushes == 1) {
+							stream.flush();
+						}
+					}
+					stream.check("first bytes, level " + level + ", split " + split + ", flushes " + flushes);
+				}
+			}
+			
+			// switching back from the HUFF or STORED levels resets the window through the first bytes code
+			Stream stream = new Stream(new Deflater(Deflater.HUFF, 15, null));
+			stream.write(data, 0, 4);
+			stream.flush();
+			stream.deflater.setLevel(level);
+			stream.write(data, 4, 1);
+			stream.flush();
+			stream.write(data, 5, data.length - 5);
+			stream.check("first bytes after a switch to level " + level);
+		}
+	}
+	
+	/**
+	 * Data written just before the window grows is copied into the larger window so writing it again compresses to a
+	 * copy rather than to literals.
+	 */
+	private static void checkGrowthKeepsHistory() throws IOException {
+		Random random = new Random(0);
+		byte[] data = new byte[300];
+		random.nextBytes(data);
+		Stream stream = new Stream(new Deflater(Deflater.MEDIUM, 10, 15, 0, null));
+		while (stream.in.size() < 5000) {
+			byte[] message = message(random);
+			stream.write(message, 0, message.length);
+		}
+		stream.write(data, 0, data.length);
+		stream.flush();
+		if (stream.deflater.getWindowBits() == 10) {
+			throw new IllegalStateException("growth keeps history: the window did not grow");
+		}
+		int size = stream.out.size();
+		stream.write(data, 0, data.length);
+		stream.flush();
+		if (stream.out.size() - size > 20) {
+			throw new IllegalStateException("growth keeps history: " + data.length + " bytes written before the window grew compressed to " + (stream.out.size() - size) + " bytes after");
+		}
+		stream.check("growth keeps history");
+	}
+	
+	/**
+	 * Writing data again after blocks have been spliced in compresses to copies both of the data written before the
+	 * blocks, such as a compression dictionary, and of the blocks' data.
+	 */
+	private static void checkSplicingKeepsHistory() throws IOException {
+		Random random = new Random(0);
+		byte[] before = new byte[300];
+		random.nextBytes(before);
+		byte[] spliced = new byte[300];
+		random.nextBytes(spliced);
+		Stream stream = new Stream(new Deflater(Deflater.MEDIUM, 15, null));
+		stream.write(before, 0, before.length);
+		stream.flush();
+		byte[] blocks = Deflater.compressBlocks(spliced, 0, spliced.length, Deflater.COMPACT, null);
+		stream.in.write(spliced);
+		stream.deflater.writeBlocks(blocks, 0, blocks.length, spliced, 0, spliced.length);
+		int size = stream.out.size();
+		stream.write(before, 0, before.length);
+		stream.write(spliced, 0, spliced.length);
+		stream.flush();
+		if (stream.out.size() - size > 30) {
+			throw new IllegalStateException("splicing keeps history: " + (before.length + spliced.length) + " bytes written before and spliced compressed to " + (stream.out.size() - size) + " bytes after");
+		}
+		stream.check("splicing keeps history");
+	}
+	
+	private static void checkLevelSwitches(Random random, BufferPool bufferPool) throws IOException {
+		Stream stream = new Stream(new Deflater(level(random), 15, bufferPool));
+		for (int i = 0; i < 50; i++) {
+			byte[] message = message(random);
+			stream.write(message, 0, message.length);
+			if (random.nextInt(4) != 0) {
+				stream.flush();
+			}
+			// mostly just after a sync flush like the adaptive controller, but also with data pending
+			stream.deflater.setLevel(level(random));
+		}
+		stream.check("level switches");
+	}
+	
+	private static void checkWindowGrowth(Random random, BufferPool bufferPool) throws IOException {
+		int windowBits = 9 + random.nextInt(2);
+		int hashBits = random.nextBoolean() ? 0 : 8;
+		Stream stream = new Stream(new Deflater(Deflater.MEDIUM, windowBits, 15, hashBits, bufferPool));
+		while (stream.deflater.getWindowBits() < 15) {
+			byte[] message = message(random);
+			stream.write(message, 0, message.length);
+			stream.flush();
+			if (stream.in.size() > 1 << 20) {
+				throw new IllegalStateException("window growth: the window did not grow from " + windowBits + " bits");
+			}
+		}
+		for (int i = 0; i < 20; i++) {
+			byte[] message = message(random);
+			stream.write(message, 0, message.length);
+			stream.flush();
+		}
+		stream.check("window growth from " + windowBits + " bits, hash bits " + hashBits);
+	}
+	
+	private static void checkSplicing(Random random, BufferPool bufferPool) throws IOException {
+		Stream stream = new Stream(new Deflater(level(random), 9 + random.nextInt(7), bufferPool));
+		for (int i = 0; i < 50; i++) {
+			byte[] message = message(random);
+			if (random.nextInt(3) == 0) {
+				byte[] blocks = Deflater.compressBlocks(message, 0, message.length, level(random), bufferPool);
+				stream.in.write(message);
+				// spliced after a flush or with data pending, which the deflater sync flushes first
+				stream.deflater.writeBlocks(blocks, 0, blocks.length, message, 0, message.length);
+			}
+			else {
+				stream.write(message, 0, message.length);
+			}
+			if (random.nextBoolean()) {
+				stream.flush();
+			}
+		}
+		stream.check("splicing");
+	}
+	
+	private static int level(Random random) {
+		return LEVELS[random.nextInt(LEVELS.length)];
+	}
+	
+	/**
+	 * Generates a message of repeated phrases, random text or random bytes, from empty to a few KB.
+	 */
+	private static byte[] message(Random random) throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		int length = random.nextInt(8) == 0 ? random.nextInt(3) : random.nextInt(random.nextBoolean() ? 200 : 4000);
+		switch (random.nextInt(3)) {
+		case 0:
+			while (message.size() < length) {
+				message.write(PHRASES[random.nextInt(PHRASES.length)].getBytes("UTF-8"));
+				message.write('0' + random.nextInt(10));
+			}
+			break;
+		case 1:
+			while (message.size() < length) {
+				message.write('a' + random.nextInt(26));
+			}
+			break;
+		default:
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			message.write(bytes);
+		}
+		return message.toByteArray();
+	}
+	
+	/**
+	 * A deflater writing to memory along with the uncompressed data it was given.
+	 */
+	private static class Stream {
+		
+		private final Deflater deflater;
+		private final ByteArrayOutputStream in = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		private Stream(Deflater deflater) {
+			this.deflater = deflater;
+			deflater.setOut(out);
+		}
+		
+		private void write(byte[] b, int off, int len) throws IOException {
+			deflater.process(b, off, len);
+			in.write(b, off, len);
+		}
+		
+		private void flush() throws IOException {
+			deflater.flushSync(true);
+		}
+		
+		private void check(String name) throws IOException {
+			deflater.terminate();
+			byte[] expected = in.toByteArray();
+			byte[] actual = CompressionBenchmark.inflate(out.toByteArray(), 0);
+			if (!Arrays.equals(expected, actual)) {
+				int i = 0;
+				while (i < expected.length && i < actual.length && expected[i] == actual[i]) {
+					i++;
+				}
+				throw new IllegalStateException(name + ": " + actual.length + " bytes inflated from " + expected.length + " differ at byte " + i);
+			}
+		}
+	}
+}
@@ -28,16 +28,29 @@ import net.zschech.gwt.comettest.client.CometTestEntryPoint.TestData;
 
 public class EscapeTestServlet extends CometServlet {
 	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		// an object written twice is serialized straight into the response then encoded through the cache
+		setEncodingCache(16, 60000);
+	}
+	
 	@Override
 	protected void doComet(CometServletResponse cometResponse) throws ServletException, IOException {
 		HttpServletRequest request = cometResponse.getRequest();
 		String mode = request.getParameter("mode");
 		
 		if ("string".equals(mode)) {
-			cometResponse.write(CometTestEntryPoint.ESCAPE);
+			for (String escape : CometTestEntryPoint.ESCAPES) {
+				cometResponse.write(escape);
+			}
 		}
 		else {
-			cometResponse.write(new TestData(0, CometTestEntryPoint.ESCAPE));
+			for (int i = 0; i < CometTestEntryPoint.ESCAPES.length; i++) {
+				TestData data = new TestData(i, CometTestEntryPoint.ESCAPES[i]);
+				cometResponse.write(data);
+				cometResponse.write(data);
+			}
 			cometResponse.write((Serializable) null);
 		}
 		cometResponse.terminate();
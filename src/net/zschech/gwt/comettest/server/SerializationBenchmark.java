@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 Richard Zschech.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.zschech.gwt.comettest.server;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Random;
+
+import net.zschech.gwt.comet.client.SerialTypes;
+import net.zschech.gwt.comet.server.impl.SerialTypeWriter;
+import net.zschech.gwt.comet.server.impl.SerialTypesStreamWriter;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+/**
+ * Benchmarks serializing messages with GWT's reflective {@link ServerSerializationStreamWriter} and with the
+ * {@link SerialTypesStreamWriter} using the writers of the {@link SerialTypes} types. Each message is serialized on its
+ * own like a Comet response does. Both outputs of every message are checked to be the same.
+ * 
+ * GWT is measured before and after the writers are created since creating them leaves the fields GWT caches
+ * accessible, which saves GWT making them accessible for each message.
+ * 
+ * Usage: SerializationBenchmark [messages [runs]]
+ * 
+ * @author Richard Zschech
+ */
+public class SerializationBenchmark {
+	
+	public static void main(String[] args) throws SerializationException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		Random random = new Random(1);
+		Quote[] messages = new Quote[count];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = new Quote(random);
+		}
+		
+		SerializationPolicy serializationPolicy = RPC.getDefaultSerializationPolicy();
+		System.out.println(count + " messages, best of " + runs + " runs");
+		System.out.println();
+		System.out.println(String.format("%-32s %10s %14s", "writer", "ms", "messages/s"));
+		double reflective = run("reflective", serializationPolicy, null, messages, runs);
+		
+		// creating the writers leaves GWT's cached fields accessible
+		Map<Class<?>, SerialTypeWriter> writers = SerialTypeWriter.create(serializationPolicy, QuoteSerializer.class);
+		if (!writers.containsKey(Quote.class) || !writers.containsKey(Trader.class)) {
+			throw new IllegalStateException("No writers for the message types: " + writers.keySet());
+		}
+		
+		for (Quote message : messages) {
+			String expected = serialize(new ServerSerializationStreamWriter(serializationPolicy), message);
+			String actual = serialize(new SerialTypesStreamWriter(serializationPolicy, writers), message);
+			if (!expected.equals(actual)) {
+				throw new IllegalStateException("Serialized differently:\n" + expected + "\n" + actual);
+			}
+		}
+		
+		run("reflective, fields accessible", serializationPolicy, null, messages, runs);
+		double generated = run("serial type writers", serializationPolicy, writers, messages, runs);
+		System.out.println();
+		System.out.println(String.format("%.2fx the reflective messages/s", reflective / generated));
+	}
+	
+	private static double run(String name, SerializationPolicy serializationPolicy, Map<Class<?>, SerialTypeWriter> writers, Quote[] messages, int runs) throws SerializationException {
+		long best = Long.MAX_VALUE;
+		int length = 0;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			for (Quote message : messages) {
+				ServerSerializationStreamWriter streamWriter = writers == null ? new ServerSerializationStreamWriter(serializationPolicy) : new SerialTypesStreamWriter(serializationPolicy, writers);
+				length += serialize(streamWriter, message).length();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double ms = best / 1e6;
+		// the length is printed so the serialization can not be optimized away
+		System.out.println(String.format("%-32s %10.1f %14.0f %s", name, ms, messages.length / ms * 1e3, length == 0 ? "!" : ""));
+		return ms;
+	}
+	
+	private static String serialize(ServerSerializationStreamWriter streamWriter, Serializable message) throws SerializationException {
+		streamWriter.prepareToWrite();
+		streamWriter.writeObject(message);
+		return streamWriter.toString();
+	}
+	
+	@SerialTypes( { Quote.class })
+	private static class QuoteSerializer {
+	}
+	
+	/**
+	 * A message with fields in a superclass, primitive and string fields and a nested object.
+	 */
+	private static class Event implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private long sequence;
+		private String source;
+		
+		private Event(long sequence, String source) {
+			this.sequence = sequence;
+			this.source = source;
+		}
+	}
+	
+	private static class Quote extends Event {
+		private static final long serialVersionUID = 1L;
+		
+		private String symbol;
+		private double bid;
+		private double ask;
+		private int volume;
+		private boolean open;
+		private Trader trader;
+		
+		private Quote(Random random) {
+			super(random.nextLong(), "feed" + random.nextInt(4));
+			symbol = "SYM" + random.nextInt(100);
+			bid = random.nextInt(100000) / 100.0;
+			ask = bid + random.nextInt(100) / 100.0;
+			volume = random.nextInt(10000);
+			open = random.nextBoolean();
+			trader = new Trader();
+			trader.id = random.nextInt(50);
+			trader.name = "trader" + trader.id;
+		}
+	}
+	
+	private static class Trader implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private int id;
+		private String name;
+	}
+}